@@ -25,16 +25,19 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 /**
  * {@link com.github.zhongl.api.Actor} is thread-bound {@link Runnable} executor.
+ * <p/>
+ * Tasks are queued in a {@link Mailbox}, and drained in batches of at most {@link #DRAIN_BATCH} after each heartbeat.
  *
  * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
  */
 @ThreadSafe
 public abstract class Actor {
     public static final long TIMEOUT = Long.getLong("ipage.actor.poll.timeout", 500L);
+    public static final int DRAIN_BATCH = Integer.getInteger("ipage.actor.drain.batch", 64);
 
     private final Core core;
     private final long timeout;
-    private final BlockingQueue<Runnable> tasks; // TODO monitor
+    private final Mailbox mailbox;
 
     private final Runnable SHUTDOWN = new Runnable() {
         public void run() { core.running = false; }
@@ -45,7 +48,7 @@ public abstract class Actor {
     protected Actor(String name, long timeout) {
         checkArgument(timeout >= 0);
         this.timeout = timeout;
-        this.tasks = new LinkedBlockingQueue<Runnable>();
+        this.mailbox = new Mailbox();
         core = new Core(name);
     }
 
@@ -57,17 +60,22 @@ public abstract class Actor {
     public synchronized void stop() {
         if (!core.isAlive()) return;
         try {
-            tasks.put(SHUTDOWN);
+            mailbox.offer(SHUTDOWN);
             core.join();
         } catch (InterruptedException ignored) { }
     }
 
     protected final <T> Future<T> submit(Callable<T> task) {
         final FutureTask futureTask = new FutureTask(task);
-        tasks.offer(futureTask);
+        mailbox.offer(futureTask);
         return futureTask;
     }
 
+    /** Unlike {@link #submit(Callable)}, a throwable of the task would interrupt by {@link #onInterruptedBy(Throwable)}. */
+    protected final void execute(Runnable task) { mailbox.offer(task); }
+
+    Mailbox mailbox() { return mailbox; }
+
     /** Overwrite this method for some time-sensitive stuff. */
     protected void heartbeat() throws Throwable {}
 
@@ -81,12 +89,15 @@ public abstract class Actor {
 
         @Override
         public void run() {
+            mailbox.bind();
             while (running) {
                 try {
-                    Runnable task = tasks.poll(timeout, MILLISECONDS);
+                    Runnable task = mailbox.poll(timeout, MILLISECONDS);
                     heartbeat();
-                    if (task == null) continue;
-                    task.run();
+                    for (int i = 0; task != null; task = ++i < DRAIN_BATCH ? mailbox.poll() : null) {
+                        task.run();
+                        if (!running) break;
+                    }
                 } catch (Throwable t) {
                     running = onInterruptedBy(t);
                 }
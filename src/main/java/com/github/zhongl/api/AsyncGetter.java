@@ -0,0 +1,147 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.index.Key;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Gets are queued and drained in batches by at most {@code threads} readers, so that callers never block on disk, and
+ * concurrent misses could be read together in order of offset.
+ * <p/>
+ * At most {@code capacity} gets could be pending, a get beyond that would be failed with
+ * {@link RejectedExecutionException} at once, so that an overload of reads never grows the heap without bound.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@ThreadSafe
+class AsyncGetter<V> {
+    public static final int THREADS = Integer.getInteger("ipage.async.getter.threads", 4);
+    public static final int BATCH = Integer.getInteger("ipage.async.getter.batch", 256);
+    public static final int CAPACITY = Integer.getInteger("ipage.async.getter.capacity", 65536);
+
+    private final Function<Collection<Key>, Map<Key, V>> getAll;
+    private final int threads;
+    private final int batch;
+    private final BlockingQueue<Request> pending;
+    private final AtomicInteger readers;
+    private final ExecutorService executor;
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                for (List<Request> requests = poll(); !requests.isEmpty(); requests = poll()) read(requests);
+            } finally {
+                readers.decrementAndGet();
+            }
+            if (!pending.isEmpty()) schedule(); // offered after the last poll
+        }
+    };
+
+    AsyncGetter(Function<Collection<Key>, Map<Key, V>> getAll) { this(getAll, THREADS, BATCH); }
+
+    AsyncGetter(Function<Collection<Key>, Map<Key, V>> getAll, int threads, int batch) {
+        this(getAll, threads, batch, CAPACITY);
+    }
+
+    AsyncGetter(Function<Collection<Key>, Map<Key, V>> getAll, int threads, int batch, int capacity) {
+        checkArgument(threads > 0, "At least one thread.");
+        checkArgument(batch > 0, "At least one in a batch.");
+        checkArgument(capacity > 0, "At least one pending.");
+        this.getAll = getAll;
+        this.threads = threads;
+        this.batch = batch;
+        this.pending = new LinkedBlockingQueue<Request>(capacity);
+        this.readers = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(threads), new ThreadFactory() { // no more drains than threads
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "async-getter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        this.executor = executor;
+    }
+
+    public ListenableFuture<V> get(Key key) {
+        Request request = new Request(key);
+        if (pending.offer(request)) schedule();
+        else request.future.setException(new RejectedExecutionException("Too many pending gets."));
+        return request.future;
+    }
+
+    public void shutdown() { executor.shutdown(); }
+
+    /** Readers are no more than threads, the pending would be drained by running ones otherwise. */
+    private void schedule() {
+        while (true) {
+            int current = readers.get();
+            if (current >= threads) return;
+            if (readers.compareAndSet(current, current + 1)) break;
+        }
+        try {
+            executor.execute(drain);
+        } catch (RejectedExecutionException e) {
+            readers.decrementAndGet();
+            for (Request request = pending.poll(); request != null; request = pending.poll())
+                request.future.setException(e);
+        }
+    }
+
+    private List<Request> poll() {
+        List<Request> requests = new ArrayList<Request>();
+        for (Request request = pending.poll(); request != null; request = pending.poll()) {
+            requests.add(request);
+            if (requests.size() == batch) break;
+        }
+        return requests;
+    }
+
+    private void read(List<Request> requests) {
+        Set<Key> keys = new HashSet<Key>(requests.size() * 2);
+        for (Request request : requests) keys.add(request.key);
+        try {
+            Map<Key, V> values = getAll.apply(keys);
+            for (Request request : requests) request.future.set(values.get(request.key));
+        } catch (Throwable t) {
+            for (Request request : requests) request.future.setException(t);
+        }
+    }
+
+    private class Request {
+        private final Key key;
+        private final SettableFuture<V> future;
+
+        private Request(Key key) {
+            this.key = key;
+            this.future = SettableFuture.create();
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.github.zhongl.api;
 
+import com.github.zhongl.io.Throttle;
 import org.softee.management.annotation.Description;
 import org.softee.management.annotation.MBean;
 import org.softee.management.annotation.ManagedAttribute;
@@ -33,14 +34,29 @@ class DefragPolicy {
     private volatile int availableFreeMemoryRatio;
     private volatile int gapRatioThreshold;
     private volatile int aliveIndexOccupied;
+    private volatile int garbageRatioThreshold;
+
+    private volatile boolean costBased;
+    private volatile int reclaimPercentThreshold;
+    private volatile long maxDefragMillis;
+    private volatile long garbageBytes;
+    private volatile long diskOccupiedBytes;
+    private volatile double flushBytesPerMilli;
+    private volatile double flushMillis;
 
     DefragPolicy() {
         setAliveIndexOccupied(40);
         setAvailableFreeMemoryRatio(7);
         setGapRatioThreshold(2);
+        setGarbageRatioThreshold(Integer.getInteger("ipage.defrag.policy.garbage.ratio.threshold", 0));
+        setCostBased(Boolean.getBoolean("ipage.defrag.policy.cost.based"));
+        setReclaimPercentThreshold(Integer.getInteger("ipage.defrag.policy.reclaim.percent.threshold", 50));
+        setMaxDefragMillis(Long.getLong("ipage.defrag.policy.max.defrag.millis", 0L));
     }
 
     public boolean evaluate(final int aliveSize, final int probableDelta) {
+        if (costBased) return paysOff();
+
         int delta = aliveSize - lastAliveSize;
         if (delta > 0) increment += delta;
         else decrement -= delta;
@@ -60,6 +76,19 @@ class DefragPolicy {
         return needDefrag;
     }
 
+    /** Measure the disk usage after each merge. */
+    public void measure(long garbageBytes, long diskOccupiedBytes) {
+        this.garbageBytes = garbageBytes;
+        this.diskOccupiedBytes = diskOccupiedBytes;
+    }
+
+    /** Measure an appending flush, whose throughput is used to estimate the time of rewriting. */
+    public void flushed(long bytes, long elapseMillis) {
+        double sample = bytes * 1.0 / max(1L, elapseMillis);
+        flushBytesPerMilli = flushBytesPerMilli == 0.0 ? sample : flushBytesPerMilli * 0.8 + sample * 0.2;
+        flushMillis = flushMillis == 0.0 ? elapseMillis : flushMillis * 0.8 + elapseMillis * 0.2;
+    }
+
     @ManagedAttribute
     public int getLastAliveSize() {
         return lastAliveSize;
@@ -111,6 +140,105 @@ class DefragPolicy {
         this.gapRatioThreshold = max(1, min(9, gapRatioThreshold));
     }
 
+    @ManagedAttribute
+    public int getGarbageRatioThreshold() {
+        return garbageRatioThreshold;
+    }
+
+    @ManagedAttribute
+    @Description("Garbage percentage of a page to compact it incrementally, 0 means disabled")
+    public void setGarbageRatioThreshold(
+            @Description("Percentage in [0, 100]")
+            int garbageRatioThreshold) {
+        this.garbageRatioThreshold = max(0, min(100, garbageRatioThreshold));
+    }
+
+    @ManagedAttribute
+    public long getMaintenanceBytesPerSecond() {
+        return Throttle.MAINTENANCE.getBytesPerSecond();
+    }
+
+    @ManagedAttribute
+    @Description("I/O rate limit of background defrag and index compaction, which is shared by all instances in the JVM")
+    public void setMaintenanceBytesPerSecond(
+            @Description("Bytes per second, 0 means unlimited")
+            long bytesPerSecond) {
+        Throttle.MAINTENANCE.setBytesPerSecond(bytesPerSecond);
+    }
+
+    @ManagedAttribute
+    public boolean isCostBased() {
+        return costBased;
+    }
+
+    @ManagedAttribute
+    @Description("Evaluate by reclaimable garbage against rewriting cost instead of free memory and alive size")
+    public void setCostBased(boolean costBased) {
+        this.costBased = costBased;
+    }
+
+    @ManagedAttribute
+    public int getReclaimPercentThreshold() {
+        return reclaimPercentThreshold;
+    }
+
+    @ManagedAttribute
+    @Description("Percentage of reclaimable bytes to rewritten bytes for defrag paying off")
+    public void setReclaimPercentThreshold(
+            @Description("Percentage in [1, Integer.MAX_VALUE]")
+            int reclaimPercentThreshold) {
+        this.reclaimPercentThreshold = max(1, reclaimPercentThreshold);
+    }
+
+    @ManagedAttribute
+    public long getMaxDefragMillis() {
+        return maxDefragMillis;
+    }
+
+    @ManagedAttribute
+    @Description("Budget of estimated defrag millis, a more expensive defrag would be put off")
+    public void setMaxDefragMillis(
+            @Description("Millis, 0 means unlimited")
+            long maxDefragMillis) {
+        this.maxDefragMillis = max(0L, maxDefragMillis);
+    }
+
+    @ManagedAttribute
+    public long getGarbageBytes() {
+        return garbageBytes;
+    }
+
+    @ManagedAttribute
+    public long getDiskOccupiedBytes() {
+        return diskOccupiedBytes;
+    }
+
+    @ManagedAttribute
+    public double getFlushBytesPerMilli() {
+        return flushBytesPerMilli;
+    }
+
+    @ManagedAttribute
+    public double getFlushMillis() {
+        return flushMillis;
+    }
+
+    @ManagedAttribute
+    public long getEstimatedDefragMillis() {
+        return flushBytesPerMilli == 0.0 ? 0L : (long) (aliveBytes() / flushBytesPerMilli);
+    }
+
+    /** Alive bytes, including indices, should be rewritten for reclaiming garbage bytes. */
+    private boolean paysOff() {
+        long garbage = garbageBytes;
+        if (garbage <= 0L) return false;
+        boolean worth = garbage * 100.0 >= aliveBytes() * reclaimPercentThreshold;
+        boolean affordable = maxDefragMillis == 0L || getEstimatedDefragMillis() <= maxDefragMillis;
+        return worth && affordable;
+    }
+
+    private long aliveBytes() { return max(0L, diskOccupiedBytes - garbageBytes); }
+
     private double deltaRatio() {
         if (increment == 0) return Double.MAX_VALUE; // avoid defrag
         long gap = increment - decrement;
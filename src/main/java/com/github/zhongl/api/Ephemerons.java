@@ -23,32 +23,59 @@ import com.github.zhongl.util.Nils;
 import com.google.common.util.concurrent.FutureCallback;
 import org.softee.management.annotation.*;
 
+import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Map;
-import java.util.TreeSet;
+import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
-/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+/**
+ * Records are flushed by generations, at most {@code maxFlushingGenerations} of them could be in flight, so that a new
+ * generation can be requested while the previous one is still merging.
+ * <p/>
+ * Each record is appended to a log after put into map, a flush drains the log in order and skips records have been
+ * replaced or released, so a record belongs to only one generation, and the later record of a key always goes to a
+ * later one. Generations should be merged in the requested order.
+ * <p/>
+ * Records are partitioned into stripes by hash of key, each stripe has its own permits of flow control and log, so
+ * writers of different stripes never contend. Records are ordered in a stripe, but not across stripes.
+ * <p/>
+ * Replaced or released records left in a log are counted as stale, and the log would be compacted once they are more
+ * than {@code ipage.ephemerons.max.stale.records}, so that a hot key can't grow it without bound during a slow merge.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
 @ThreadSafe
 @MBean
 public abstract class Ephemerons<V> {
-    private final AtomicLong id;
-    private final Map<Key, Record> map;
-    private final Semaphore flowControl;
-    private final AtomicBoolean flushing;
+    public static final int MAX_FLUSHING_GENERATIONS = Integer.getInteger("ipage.ephemerons.max.flushing.generations", 2);
+    public static final int STRIPES = Integer.getInteger("ipage.ephemerons.stripes", 1);
+    public static final int MAX_STALE_RECORDS = Integer.getInteger("ipage.ephemerons.max.stale.records", 4096);
+
+    private final Stripe[] stripes;
+    private final int maxFlushingGenerations;
+    private final int maxStaleRecords;
+    private final Semaphore flushingGenerations;
     private final ExecutorService asyncRemovingService;
 
-    protected Ephemerons() {
-        id = new AtomicLong(0L);
-        map = new ConcurrentHashMap<Key, Record>();
-        flowControl = new Semaphore(0, true);
-        flushing = new AtomicBoolean(false);
+    protected Ephemerons() { this(MAX_FLUSHING_GENERATIONS, STRIPES); }
+
+    protected Ephemerons(int maxFlushingGenerations, int stripes) {
+        this(maxFlushingGenerations, stripes, MAX_STALE_RECORDS);
+    }
+
+    protected Ephemerons(int maxFlushingGenerations, int stripes, int maxStaleRecords) {
+        checkArgument(maxFlushingGenerations > 0, "At least one flushing generation.");
+        checkArgument(stripes > 0, "At least one stripe.");
+        checkArgument(maxStaleRecords > 0, "Max stale records should be positive.");
+        this.maxStaleRecords = maxStaleRecords;
+        this.stripes = new Ephemerons.Stripe[stripes];
+        for (int i = 0; i < stripes; i++) this.stripes[i] = new Stripe();
+        this.maxFlushingGenerations = maxFlushingGenerations;
+        flushingGenerations = new Semaphore(maxFlushingGenerations);
         asyncRemovingService = Executors.newCachedThreadPool(new ThreadFactory() {
             @Override
             public Thread newThread(Runnable r) {
@@ -64,111 +91,108 @@ public abstract class Ephemerons<V> {
         checkNotNull(value);
         checkNotNull(removedOrDurableCallback);
 
-        release(key, Nils.VOID);
-        acquire();
-        map.put(key, new Record(id.getAndIncrement(), key, value, removedOrDurableCallback));
+        Stripe stripe = stripeOf(key);
+        stripe.release(key, Nils.VOID);
+        acquire(stripe);
+        stripe.append(new Addition(stripe, key, value, removedOrDurableCallback));
     }
 
     public void remove(final Key key, final FutureCallback<Void> appliedCallback) {
         checkNotNull(key);
         checkNotNull(appliedCallback);
 
-        if (release(key, Nils.VOID)) {
+        Stripe stripe = stripeOf(key);
+        if (stripe.release(key, Nils.VOID)) {
             appliedCallback.onSuccess(Nils.VOID);
             return;
         }
 
-        acquire();
-        map.put(key, new Record(id.getAndIncrement(), key, (V) Nils.OBJECT, appliedCallback));
+        acquire(stripe);
+        stripe.append(new Removal(stripe, key, appliedCallback));
+    }
+
+    /** Add entries with permits acquired in bulk for each stripe, the callback would be invoked once for all. */
+    public void addAll(Collection<Entry<Key, V>> entries, FutureCallback<Void> removedOrDurableCallback) {
+        checkNotNull(entries);
+        checkNotNull(removedOrDurableCallback);
+
+        FutureCallback<Void> callback = FutureCallbacks.aggregate(entries.size(), removedOrDurableCallback);
+        List<Record<?>>[] batches = new List[stripes.length];
+        for (Entry<Key, V> entry : entries) {
+            int i = indexOf(entry.key());
+            batchOf(batches, i).add(new Addition(stripes[i], entry.key(), entry.value(), callback));
+        }
+        appendAll(batches);
+    }
+
+    /** Remove keys with permits acquired in bulk for each stripe, the callback would be invoked once for all. */
+    public void removeAll(Collection<Key> keys, FutureCallback<Void> appliedCallback) {
+        checkNotNull(keys);
+        checkNotNull(appliedCallback);
+
+        FutureCallback<Void> callback = FutureCallbacks.aggregate(keys.size(), appliedCallback);
+        List<Record<?>>[] batches = new List[stripes.length];
+        for (Key key : keys) {
+            int i = indexOf(checkNotNull(key));
+            if (stripes[i].release(key, Nils.VOID)) callback.onSuccess(Nils.VOID);
+            else batchOf(batches, i).add(new Removal(stripes[i], key, callback));
+        }
+        appendAll(batches);
     }
 
     public V get(final Key key) {
         checkNotNull(key);
-        Record record = map.get(key);
+        Record<?> record = stripeOf(key).map.get(key);
         if (record == null) return getMiss(key);
-        if (record.value == Nils.OBJECT) return null;
-        return record.value;
+        return record.value();
+    }
+
+    /** @return values of keys found, the missed ones would be looked up by {@link #getAllMiss(Collection)}. */
+    public Map<Key, V> getAll(Collection<Key> keys) {
+        checkNotNull(keys);
+        Map<Key, V> map = new HashMap<Key, V>(keys.size() * 2);
+        List<Key> misses = new ArrayList<Key>();
+        for (Key key : keys) {
+            Record<?> record = stripeOf(checkNotNull(key)).map.get(key);
+            if (record == null) misses.add(key);
+            else if (record.value() != null) map.put(key, record.value());
+        }
+        if (!misses.isEmpty()) map.putAll(getAllMiss(misses));
+        return map;
     }
 
     public void flush() {
-        if (!flushing.compareAndSet(false, true)) return; // only one can trigger the flushing.
+        if (!flushingGenerations.tryAcquire()) return; // too many generations in flight.
 
-        final Collection<WriteOperation<Entry<Key, V>>> addOrUpdates = new ArrayList<WriteOperation<Entry<Key, V>>>();
-        final Collection<WriteOperation<Key>> removes = new ArrayList<WriteOperation<Key>>();
+        boolean requested = false;
+        try {
+            synchronized (this) { // keep generations requested in order.
+                beforeCollecting();
 
-        for (final Record record : new TreeSet<Record>(map.values())) {
-            if (record.value.equals(Nils.OBJECT)) {
-                removes.add(new WriteOperation<Key>(record.key, new FutureCallback<Void>() {
-                    @Override
-                    public void onSuccess(Void result) {
-                        release(record.key, Nils.VOID);
-                    }
+                Collection<WriteOperation<Entry<Key, V>>> addOrUpdates = new ArrayList<WriteOperation<Entry<Key, V>>>();
+                Collection<WriteOperation<Key>> removes = new ArrayList<WriteOperation<Key>>();
+                for (Stripe stripe : stripes) stripe.drainTo(addOrUpdates, removes);
 
+                requestFlush(addOrUpdates, removes, new FutureCallback<Void>() {
                     @Override
-                    public void onFailure(Throwable t) {
-                        release(record.key, t);
+                    public void onSuccess(Void v) {
+                        flushingGenerations.release();
                     }
 
-                }));
-            } else {
-                addOrUpdates.add(new WriteOperation<Entry<Key, V>>(new Entry<Key, V>(record.key, record.value), new FutureCallback<Void>() {
                     @Override
-                    public void onSuccess(Void result) {
-                        Record thatRecord = map.get(record.key);
-
-                        if (thatRecord == null) { // Remove the key which had been removed during flushing
-                            if (flowControl.tryAcquire()) remove(record.key, FutureCallbacks.<Void>ignore());
-                            else {
-                                // TODO refactor this ugly implement.
-                                asyncRemovingService.submit(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        remove(record.key, FutureCallbacks.<Void>ignore());
-                                    }
-                                });
-                            }
-                            return;
-                        }
-
-                        if (thatRecord.compareTo(record) == 0) {
-                            map.remove(record.key);
-                            flowControl.release();
-                            record.callback.onSuccess(result);
-                        }
-
-                        // Keep the key which had been updated during flushing
+                    public void onFailure(final Throwable t) {
+                        throw new UnsupportedOperationException("Should always invoke onSuccess not this method.");
                     }
 
-                    @Override
-                    public void onFailure(Throwable t) {
-                        //  release if it is the same entry
-                        Record thatRecord = map.get(record.key);
-                        if (thatRecord != null && thatRecord.compareTo(record) == 0) {
-                            map.remove(record.key);
-                            flowControl.release();
-                            record.callback.onFailure(t);
-                        }
-                        // do nothing if it is removed or updated
-                    }
-                }));
+                });
+                requested = true;
             }
+        } finally {
+            if (!requested) flushingGenerations.release(); // or no more flush once all permits are leaked
         }
-
-        requestFlush(addOrUpdates, removes, new FutureCallback<Void>() {
-            @Override
-            public void onSuccess(Void v) {
-                flushing.set(false);
-            }
-
-            @Override
-            public void onFailure(final Throwable t) {
-                throw new UnsupportedOperationException("Should always invoke onSuccess not this method.");
-            }
-
-        });
     }
 
-    /** This method supposed be asynchronized. */
+    /** This method supposed be asynchronized, and requested flushes should be merged in order. */
     protected abstract void requestFlush(
             Collection<WriteOperation<Entry<Key, V>>> addOrUpdates,
             Collection<WriteOperation<Key>> removes,
@@ -178,53 +202,230 @@ public abstract class Ephemerons<V> {
     /** This method supposed be thread safed. */
     protected abstract V getMiss(Key key);
 
+    /** Overwrite this method for a batch lookup, keys are looked up one by one by default. */
+    protected Map<Key, V> getAllMiss(Collection<Key> keys) {
+        Map<Key, V> map = new HashMap<Key, V>(keys.size() * 2);
+        for (Key key : keys) {
+            V value = getMiss(key);
+            if (value != null) map.put(key, value);
+        }
+        return map;
+    }
+
+    /** Overwrite this method for something should happen before records of a new generation are collected. */
+    protected void beforeCollecting() {}
+
     @ManagedOperation
     @Description("positive delta for up, negative delta for down.")
     public int throughout(@Parameter("delta") int delta) {
-        if (delta > 0) flowControl.release(delta);
-        if (delta < 0) flowControl.acquireUninterruptibly(-delta);
-        return flowControl.availablePermits();
+        int permits = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            int share = delta / stripes.length + (i < Math.abs(delta % stripes.length) ? Integer.signum(delta) : 0);
+            Semaphore flowControl = stripes[i].flowControl;
+            if (share > 0) flowControl.release(share);
+            if (share < 0) flowControl.acquireUninterruptibly(-share);
+            permits += flowControl.availablePermits();
+        }
+        return permits;
     }
 
     @ManagedAttribute
-    public boolean isFlushing() { return flushing.get(); }
+    public boolean isFlushing() { return getFlushingGenerations() > 0; }
+
+    @ManagedAttribute
+    public int getFlushingGenerations() { return maxFlushingGenerations - flushingGenerations.availablePermits(); }
+
+    @ManagedAttribute
+    public int getSize() {
+        int size = 0;
+        for (Stripe stripe : stripes) size += stripe.map.size();
+        return size;
+    }
 
     @ManagedAttribute
-    public int getSize() { return map.size(); }
+    @Description("records in logs, including stale ones which have not been compacted.")
+    public int getLogSize() {
+        int size = 0;
+        for (Stripe stripe : stripes) size += stripe.log.size();
+        return size;
+    }
 
-    private void acquire() {
+    private void acquire(Stripe stripe) {
         try {
-            while (!flowControl.tryAcquire(500L, TimeUnit.MILLISECONDS)) flush();
+            while (!stripe.flowControl.tryAcquire(500L, TimeUnit.MILLISECONDS)) flush();
         } catch (InterruptedException e) {
             throw new IllegalStateException(e);
         }
     }
 
-    private boolean release(Key key, Object voidOrThrowable) {
-        Record record = map.remove(key);
-        if (record == null) return false;
+    private void appendAll(List<Record<?>>[] batches) {
+        for (int i = 0; i < batches.length; i++) {
+            List<Record<?>> batch = batches[i];
+            if (batch == null) continue;
+
+            Stripe stripe = stripes[i];
+            for (int from = 0; from < batch.size(); ) {
+                int to = from + acquireUpTo(stripe, batch.size() - from);
+                for (Record<?> record : batch.subList(from, to)) {
+                    stripe.release(record.key, Nils.VOID);
+                    stripe.append(record);
+                }
+                from = to;
+            }
+        }
+    }
 
-        flowControl.release();
-        if (voidOrThrowable == Nils.VOID) record.callback.onSuccess(Nils.VOID);
-        else record.callback.onFailure((Throwable) voidOrThrowable);
-        return true;
+    /** @return acquired permits, which may be less than wanted for a batch larger than the throughout of a stripe. */
+    private int acquireUpTo(Stripe stripe, int wanted) {
+        try {
+            while (true) {
+                int permits = Math.min(wanted, Math.max(1, stripe.flowControl.availablePermits()));
+                if (stripe.flowControl.tryAcquire(permits, 500L, TimeUnit.MILLISECONDS)) return permits;
+                flush();
+            }
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private List<Record<?>> batchOf(List<Record<?>>[] batches, int i) {
+        if (batches[i] == null) batches[i] = new ArrayList<Record<?>>();
+        return batches[i];
+    }
+
+    private Stripe stripeOf(Key key) { return stripes[indexOf(key)]; }
+
+    private int indexOf(Key key) { return (key.hashCode() & Integer.MAX_VALUE) % stripes.length; }
+
+    private class Stripe {
+        private final ConcurrentMap<Key, Record<?>> map = new ConcurrentHashMap<Key, Record<?>>();
+        private final Queue<Record<?>> log = new ConcurrentLinkedQueue<Record<?>>();
+        private final Semaphore flowControl = new Semaphore(0, true);
+        private final AtomicInteger stale = new AtomicInteger();
+
+        /** Put before appending, so that a record in log but not in map must have been replaced or released. */
+        private void append(Record<?> record) {
+            map.put(record.key, record);
+            record.logged = true;
+            log.offer(record);
+            if (stale.get() >= maxStaleRecords) compact();
+        }
+
+        @GuardedBy("Ephemerons.this")
+        private void drainTo(Collection<WriteOperation<Entry<Key, V>>> addOrUpdates, Collection<WriteOperation<Key>> removes) {
+            for (Record<?> record = log.poll(); record != null; record = log.poll()) {
+                record.logged = false;
+                if (map.get(record.key) != record) continue; // replaced or released
+                if (record instanceof Ephemerons.Removal) removes.add((Removal) record);
+                else addOrUpdates.add((Addition) record);
+            }
+        }
+
+        /** Remove stale records from log, it is safe with concurrent appending and draining. */
+        private void compact() {
+            synchronized (log) {
+                if (stale.get() < maxStaleRecords) return; // compacted by another one
+                stale.set(0);
+                for (Iterator<Record<?>> iterator = log.iterator(); iterator.hasNext(); ) {
+                    Record<?> record = iterator.next();
+                    if (map.get(record.key) == record) continue;
+                    record.logged = false;
+                    iterator.remove();
+                }
+            }
+        }
+
+        private boolean release(Key key, Object voidOrThrowable) {
+            Record<?> record = map.remove(key);
+            if (record == null) return false;
+
+            if (record.logged) stale.incrementAndGet();
+            flowControl.release();
+            record.complete(voidOrThrowable);
+            return true;
+        }
+
+        /** Release only if the record has not been replaced, which would be flushed in a later generation. */
+        private void release(Record<?> record, Object voidOrThrowable) {
+            if (!map.remove(record.key, record)) return;
+
+            if (record.logged) stale.incrementAndGet();
+            flowControl.release();
+            record.complete(voidOrThrowable);
+        }
     }
 
-    protected class Record implements Comparable<Record> {
-        private Long id;
-        private Key key;
-        private final V value;
+    /** A record is the write operation of itself, so there is no more allocation in flushing. */
+    private abstract class Record<T> extends WriteOperation<T> {
+        protected final Stripe stripe;
+        protected final Key key;
         private final FutureCallback<Void> callback;
+        private volatile boolean logged; // not drained or compacted yet, which is used to count stale ones roughly
 
-        public Record(long id, Key key, V value, FutureCallback<Void> callback) {
-            this.id = id;
+        protected Record(Stripe stripe, Key key, T attachment, FutureCallback<Void> callback) {
+            super(attachment);
+            this.stripe = stripe;
             this.key = key;
-            this.value = value;
             this.callback = callback;
         }
 
+        /** @return null if it is a removal. */
+        protected abstract V value();
+
+        private void complete(Object voidOrThrowable) {
+            if (voidOrThrowable == Nils.VOID) callback.onSuccess(Nils.VOID);
+            else callback.onFailure((Throwable) voidOrThrowable);
+        }
+    }
+
+    private class Addition extends Record<Entry<Key, V>> {
+        private Addition(Stripe stripe, Key key, V value, FutureCallback<Void> callback) {
+            super(stripe, key, new Entry<Key, V>(key, value), callback);
+        }
+
+        @Override
+        protected V value() { return attachement().value(); }
+
+        @Override
+        public void onSuccess(Void result) {
+            Record<?> thatRecord = stripe.map.get(key);
+
+            if (thatRecord == null) { // Remove the key which had been removed during flushing
+                if (stripe.flowControl.tryAcquire()) remove(key, FutureCallbacks.<Void>ignore());
+                else {
+                    // TODO refactor this ugly implement.
+                    asyncRemovingService.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            remove(key, FutureCallbacks.<Void>ignore());
+                        }
+                    });
+                }
+                return;
+            }
+
+            stripe.release(this, Nils.VOID); // keep the key which had been updated during flushing
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            stripe.release(this, t); // do nothing if it is removed or updated
+        }
+    }
+
+    private class Removal extends Record<Key> {
+        private Removal(Stripe stripe, Key key, FutureCallback<Void> callback) {
+            super(stripe, key, key, callback);
+        }
+
+        @Override
+        protected V value() { return null; }
+
+        @Override
+        public void onSuccess(Void result) { stripe.release(this, Nils.VOID); }
+
         @Override
-        public int compareTo(Record o) { return id.compareTo(o.id); }
+        public void onFailure(Throwable t) { stripe.release(this, t); }
     }
 
 }
@@ -19,8 +19,11 @@ import com.github.zhongl.codec.Codec;
 import com.github.zhongl.index.Key;
 import com.github.zhongl.util.CallByCountOrElapse;
 import com.github.zhongl.util.Entry;
+import com.github.zhongl.util.FutureCallbacks;
 import com.github.zhongl.util.Nils;
+import com.google.common.base.Function;
 import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.softee.management.helper.MBeanRegistration;
 import org.softee.management.helper.ObjectNameBuilder;
 
@@ -28,9 +31,10 @@ import javax.annotation.concurrent.ThreadSafe;
 import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
 import java.io.File;
-import java.util.Collection;
-import java.util.Iterator;
+import java.nio.ByteBuffer;
+import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
 @ThreadSafe
@@ -39,22 +43,43 @@ public abstract class IPage<K, V> extends Actor implements Iterable<V> {
     private static final String EPHEMERONS = "Ephemerons";
     private static final String STORAGE = "Storage";
     private static final String DEFRAG_POLICY = "DefragPolicy";
+    private static final String VALUE_CACHE = "ValueCache";
+    private static final String MAILBOX = "Mailbox";
+    private static final int STRIPES = 64;
 
     private final Storage<V> storage;
     private final Ephemerons<V> ephemerons;
     private final CallByCountOrElapse callByCountOrElapse;
     private final DefragPolicy defragPolicy;
+    private final ValueCache<V> valueCache;
+    private final WriteAheadLog<V> writeAheadLog;
+    private final Object[] stripes;
+    private final AsyncGetter<V> asyncGetter;
+    private final AtomicInteger uncounted;
+    private final Runnable callByCount;
 
     protected IPage(File dir, Codec<V> valueCodec, int throughout, long flushMillis, int flushCount) throws Exception {
-        super("IPage@" + dir.getName(), flushMillis / 2);
+        this("IPage@" + dir.getName(), dir, valueCodec, throughout, flushMillis, flushCount);
+    }
+
+    /** @param name of the actor, which should be unique, e.g. shards of a {@link ShardedIPage}. */
+    IPage(String name, File dir, Codec<V> valueCodec, int throughout, long flushMillis, int flushCount)
+            throws Exception {
+        super(name, flushMillis / 2);
 
         Md5KeyCodec keyCodec = new Md5KeyCodec();
         RangeIndexCodec rangeIndexCodec = new RangeIndexCodec(keyCodec);
         Snapshot<V> snapshot = new Snapshot<V>(dir, rangeIndexCodec, new EntryCodec<V>(keyCodec, valueCodec));
 
         defragPolicy = new DefragPolicy();
-        this.storage = new Storage<V>(snapshot, rangeIndexCodec, defragPolicy);
-        this.ephemerons = new Ephemerons<V>() {
+        valueCache = new ValueCache<V>(valueCodec);
+        this.storage = new Storage<V>(snapshot, rangeIndexCodec, defragPolicy, valueCache);
+        this.writeAheadLog = WriteAheadLog.ENABLED ? new WriteAheadLog<V>(new File(dir, "wal"), valueCodec) : null;
+        if (writeAheadLog != null) writeAheadLog.replay(storage);
+        this.stripes = new Object[STRIPES];
+        for (int i = 0; i < stripes.length; i++) stripes[i] = new Object();
+        int ephemeronStripes = Math.max(1, Math.min(Ephemerons.STRIPES, throughout)); // at least one permit for each stripe
+        this.ephemerons = new Ephemerons<V>(Ephemerons.MAX_FLUSHING_GENERATIONS, ephemeronStripes) {
             @Override
             protected void requestFlush(
                     final Collection<WriteOperation<Entry<Key, V>>> addOrUpdates,
@@ -64,22 +89,48 @@ public abstract class IPage<K, V> extends Actor implements Iterable<V> {
                 submit(new Callable<Void>() {
                     @Override
                     public Void call() throws Exception {
-                        storage.merge(addOrUpdates, removes, flushedCallback);
+                        if (writeAheadLog == null) storage.merge(addOrUpdates, removes, flushedCallback);
+                        else writeAheadLog.merge(storage, addOrUpdates, removes, flushedCallback);
                         return Nils.VOID;
                     }
                 });
             }
 
+            @Override
+            protected void beforeCollecting() {
+                if (writeAheadLog != null) writeAheadLog.roll();
+            }
+
             @Override
             protected V getMiss(Key key) { return storage.get(key); }
+
+            @Override
+            protected Map<Key, V> getAllMiss(Collection<Key> keys) { return storage.getAll(keys); }
         };
 
         ephemerons.throughout(throughout);
 
+        this.asyncGetter = new AsyncGetter<V>(new Function<Collection<Key>, Map<Key, V>>() {
+            @Override
+            public Map<Key, V> apply(Collection<Key> keys) { return ephemerons.getAll(keys); }
+        });
+
+        this.uncounted = new AtomicInteger();
+        this.callByCount = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    callByCountOrElapse.tryCallByCount(uncounted.getAndSet(0));
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+
         this.callByCountOrElapse = new CallByCountOrElapse(flushCount, flushMillis, new Callable<Void>() {
             @Override
             public Void call() throws Exception {
-                if (!ephemerons.isFlushing()) ephemerons.flush();
+                ephemerons.flush();
                 return Nils.VOID;
             }
         });
@@ -87,30 +138,125 @@ public abstract class IPage<K, V> extends Actor implements Iterable<V> {
         new MBeanRegistration(ephemerons, objectName(EPHEMERONS)).register();
         new MBeanRegistration(storage, objectName(STORAGE)).register();
         new MBeanRegistration(defragPolicy, objectName(DEFRAG_POLICY)).register();
+        new MBeanRegistration(valueCache, objectName(VALUE_CACHE)).register();
+        new MBeanRegistration(mailbox(), objectName(MAILBOX)).register();
     }
 
+    /** @throws IllegalArgumentException if write ahead log is enabled and the value is too long to be logged. */
     public void add(final K key, final V value, FutureCallback<Void> removedOrDurableCallback) {
-        ephemerons.add(transform(key), value, removedOrDurableCallback);
-        tryCallByCount();
+        Md5Key md5Key = transform(key);
+        if (writeAheadLog == null) {
+            ephemerons.add(md5Key, value, removedOrDurableCallback);
+        } else {
+            ByteBuffer record = writeAheadLog.addRecord(md5Key, value);
+            FutureCallback<Void> callback = FutureCallbacks.once(removedOrDurableCallback);
+            synchronized (stripeOf(md5Key)) { // keep logged in the order of adding to ephemerons
+                ephemerons.add(md5Key, value, callback);
+                writeAheadLog.append(record, callback);
+            }
+        }
+        tryCallByCount(1);
     }
 
     public void remove(K key, FutureCallback<Void> appliedCallback) {
-        ephemerons.remove(transform(key), appliedCallback);
-        tryCallByCount();
+        Md5Key md5Key = transform(key);
+        if (writeAheadLog == null) {
+            ephemerons.remove(md5Key, appliedCallback);
+        } else {
+            FutureCallback<Void> callback = FutureCallbacks.once(appliedCallback);
+            synchronized (stripeOf(md5Key)) {
+                ephemerons.remove(md5Key, callback);
+                writeAheadLog.remove(md5Key, callback);
+            }
+        }
+        tryCallByCount(1);
+    }
+
+    /**
+     * Add entries as a batch, the callback would be invoked once after all of them are removed or durable.
+     *
+     * @throws IllegalArgumentException if write ahead log is enabled and any value is too long to be logged, then none
+     *                                  of them would be added.
+     */
+    public void addAll(Map<K, V> entries, FutureCallback<Void> removedOrDurableCallback) {
+        if (writeAheadLog == null) {
+            List<Entry<Key, V>> list = new ArrayList<Entry<Key, V>>(entries.size());
+            for (Map.Entry<K, V> entry : entries.entrySet())
+                list.add(new Entry<Key, V>(transform(entry.getKey()), entry.getValue()));
+            ephemerons.addAll(list, removedOrDurableCallback);
+        } else {
+            List<Entry<Md5Key, V>> list = new ArrayList<Entry<Md5Key, V>>(entries.size());
+            List<ByteBuffer> records = new ArrayList<ByteBuffer>(entries.size());
+            for (Map.Entry<K, V> entry : entries.entrySet()) { // encode all before adding any
+                Md5Key md5Key = transform(entry.getKey());
+                list.add(new Entry<Md5Key, V>(md5Key, entry.getValue()));
+                records.add(writeAheadLog.addRecord(md5Key, entry.getValue()));
+            }
+
+            FutureCallback<Void> callback = FutureCallbacks.aggregate(list.size(), removedOrDurableCallback);
+            for (int i = 0; i < list.size(); i++) {
+                Md5Key md5Key = list.get(i).key();
+                FutureCallback<Void> once = FutureCallbacks.once(callback);
+                synchronized (stripeOf(md5Key)) {
+                    ephemerons.add(md5Key, list.get(i).value(), once);
+                    writeAheadLog.append(records.get(i), once);
+                }
+            }
+        }
+        tryCallByCount(entries.size());
+    }
+
+    /** Remove keys as a batch, the callback would be invoked once after all of them are applied. */
+    public void removeAll(Collection<K> keys, FutureCallback<Void> appliedCallback) {
+        if (writeAheadLog == null) {
+            List<Key> list = new ArrayList<Key>(keys.size());
+            for (K key : keys) list.add(transform(key));
+            ephemerons.removeAll(list, appliedCallback);
+        } else {
+            FutureCallback<Void> callback = FutureCallbacks.aggregate(keys.size(), appliedCallback);
+            for (K key : keys) {
+                Md5Key md5Key = transform(key);
+                FutureCallback<Void> once = FutureCallbacks.once(callback);
+                synchronized (stripeOf(md5Key)) {
+                    ephemerons.remove(md5Key, once);
+                    writeAheadLog.remove(md5Key, once);
+                }
+            }
+        }
+        tryCallByCount(keys.size());
     }
 
     public V get(K key) { return ephemerons.get(transform(key)); }
 
+    /** @return a future of the value or null, concurrent gets would be read in batch by {@link AsyncGetter}. */
+    public ListenableFuture<V> getAsync(K key) { return asyncGetter.get(transform(key)); }
+
+    /** @return values of keys found, which are read in batch of sorted keys. */
+    public Map<K, V> getAll(Collection<K> keys) {
+        Map<Key, K> origins = new HashMap<Key, K>(keys.size() * 2);
+        for (K key : keys) origins.put(transform(key), key);
+
+        Map<Key, V> found = ephemerons.getAll(origins.keySet());
+        Map<K, V> map = new HashMap<K, V>(found.size() * 2);
+        for (Map.Entry<Key, V> entry : found.entrySet()) map.put(origins.get(entry.getKey()), entry.getValue());
+        return map;
+    }
+
     @Override
     public Iterator<V> iterator() { return storage.iterator(); }
 
     @Override
     public void stop() {
         super.stop();
+        asyncGetter.shutdown();
+        storage.stop();
+        if (writeAheadLog != null) writeAheadLog.close();
         try {
             new MBeanRegistration(ephemerons, objectName(EPHEMERONS)).unregister();
             new MBeanRegistration(storage, objectName(STORAGE)).unregister();
             new MBeanRegistration(defragPolicy, objectName(DEFRAG_POLICY)).unregister();
+            new MBeanRegistration(valueCache, objectName(VALUE_CACHE)).unregister();
+            new MBeanRegistration(mailbox(), objectName(MAILBOX)).unregister();
         } catch (Exception ignored) { }
     }
 
@@ -125,16 +271,13 @@ public abstract class IPage<K, V> extends Actor implements Iterable<V> {
 
     protected abstract Md5Key transform(K key);
 
-    private void tryCallByCount() {
-        submit(new Callable<Void>() {
-            @Override
-            public Void call() throws Exception {
-                callByCountOrElapse.tryCallByCount();
-                return Nils.VOID;
-            }
-        });
+    /** Counts are accumulated until the shared task runs, so there is no task allocated for each write. */
+    private void tryCallByCount(int delta) {
+        if (uncounted.getAndAdd(delta) == 0) execute(callByCount);
     }
 
+    private Object stripeOf(Md5Key key) { return stripes[key.hashCode() & (stripes.length - 1)]; }
+
     private ObjectName objectName(String type) throws MalformedObjectNameException {
         return new ObjectNameBuilder("com.github.zhongl.ipage").withType(type).withName(toString()).build();
     }
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import org.softee.management.annotation.Description;
+import org.softee.management.annotation.MBean;
+import org.softee.management.annotation.ManagedAttribute;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * {@link Mailbox} is a bounded multi-producer single-consumer ring buffer of tasks for {@link Actor}.
+ * <p/>
+ * A producer claims a sequence at first, and waits for its slot if the ring is full. The consumer may offer to itself,
+ * such a task would be kept aside by its sequence rather than waiting for itself, so that the order is still kept.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@ThreadSafe
+@MBean
+class Mailbox {
+    public static final int CAPACITY = Integer.getInteger("ipage.actor.mailbox.capacity", 1 << 16);
+    public static final WaitStrategy WAIT_STRATEGY =
+            WaitStrategy.valueOf(System.getProperty("ipage.actor.wait.strategy", "PARK"));
+
+    private static final long PRODUCER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100L);
+
+    private final AtomicReferenceArray<Runnable> ring;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+    private final AtomicLong tail;  // next sequence to claim
+    private final AtomicLong head;  // next sequence to take, only advanced by consumer
+    private final Map<Long, Runnable> asides; // only accessed by consumer
+
+    private volatile Thread consumer;
+    private volatile boolean parking;
+
+    Mailbox() { this(CAPACITY, WAIT_STRATEGY); }
+
+    Mailbox(int capacity, WaitStrategy waitStrategy) {
+        checkArgument(capacity > 0 && Integer.bitCount(capacity) == 1, "Capacity should be a power of 2.");
+        this.ring = new AtomicReferenceArray<Runnable>(capacity);
+        this.mask = capacity - 1;
+        this.waitStrategy = waitStrategy;
+        this.tail = new AtomicLong();
+        this.head = new AtomicLong();
+        this.asides = new HashMap<Long, Runnable>();
+    }
+
+    /** Bind the consumer thread, which should be invoked by it before polling. */
+    void bind() { consumer = Thread.currentThread(); }
+
+    void offer(Runnable task) {
+        long sequence = tail.getAndIncrement();
+
+        if (Thread.currentThread() == consumer && sequence - head.get() >= ring.length()) {
+            asides.put(sequence, task);
+            return;
+        }
+
+        for (int spins = 0; sequence - head.get() >= ring.length(); spins++) waitStrategy.idle(spins, PRODUCER_PARK_NANOS);
+        ring.set(index(sequence), task);
+        if (parking) LockSupport.unpark(consumer);
+    }
+
+    /** @return null if there is nothing. */
+    Runnable poll() { return poll(0L, TimeUnit.NANOSECONDS); }
+
+    /** @return null if it is timeout. */
+    Runnable poll(long timeout, TimeUnit unit) {
+        long sequence = head.get();
+
+        if (!asides.isEmpty()) {
+            Runnable task = asides.remove(sequence);
+            if (task != null) {
+                head.lazySet(sequence + 1);
+                return task;
+            }
+        }
+
+        int index = index(sequence);
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (int spins = 0; ; spins++) {
+            Runnable task = ring.get(index);
+            if (task != null) {
+                ring.lazySet(index, null);
+                head.lazySet(sequence + 1); // after slot cleared, so a producer would never write a taken slot
+                return task;
+            }
+
+            long remains = deadline - System.nanoTime();
+            if (remains <= 0L) return null;
+
+            parking = true;
+            if (ring.get(index) == null) waitStrategy.idle(spins, remains); // recheck after parking announced
+            parking = false;
+        }
+    }
+
+    @ManagedAttribute
+    @Description("count of tasks waiting to be run.")
+    public int getDepth() { return (int) Math.max(0L, tail.get() - head.get()); }
+
+    @ManagedAttribute
+    public int getCapacity() { return ring.length(); }
+
+    @ManagedAttribute
+    public String getWaitStrategy() { return waitStrategy.name(); }
+
+    private int index(long sequence) { return (int) sequence & mask; }
+
+    /** How to wait for a task as consumer, or a free slot as producer. */
+    enum WaitStrategy {
+        /** Busy spin for the lowest latency, which burns a core. */
+        SPIN {
+            @Override
+            void idle(int spins, long maxNanos) {}
+        },
+        /** Yield to other threads, which is a tradeoff between latency and cpu. */
+        YIELD {
+            @Override
+            void idle(int spins, long maxNanos) { Thread.yield(); }
+        },
+        /** Spin and yield for a while, then park until being waked up or timeout. */
+        PARK {
+            @Override
+            void idle(int spins, long maxNanos) {
+                if (spins < 64) return;
+                if (spins < 128) Thread.yield();
+                else LockSupport.parkNanos(maxNanos);
+            }
+        };
+
+        abstract void idle(int spins, long maxNanos);
+    }
+}
@@ -16,28 +16,33 @@
 package com.github.zhongl.api;
 
 import com.github.zhongl.index.Key;
+import com.github.zhongl.index.WideHashable;
 import com.github.zhongl.util.Md5;
 
 import javax.annotation.concurrent.ThreadSafe;
-import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.primitives.UnsignedLongs.compare;
 
 /** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
 @ThreadSafe
-public class Md5Key implements Key {
+public class Md5Key implements Key, WideHashable {
 
     public static final int BYTE_LENGTH = 16;
 
     private final byte[] bytes;
 
-    final BigInteger bigInteger;
+    private final long high;
+    private final long low;
 
     public Md5Key(byte[] bytes) {
         checkArgument(bytes.length == BYTE_LENGTH, "Invalid bytes length %s", bytes.length);
         this.bytes = bytes;
-        bigInteger = new BigInteger(1, bytes);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        high = buffer.getLong();
+        low = buffer.getLong();
     }
 
     public byte[] toBytes() {
@@ -62,11 +67,26 @@ public class Md5Key implements Key {
         return Arrays.hashCode(bytes);
     }
 
+    /** Md5 is uniformly distributed, so the high 8 bytes is good enough as a hash. */
+    @Override
+    public long highHash() { return high; }
+
+    @Override
+    public long lowHash() { return low; }
+
     @Override
     public int compareTo(Key that) {
         checkArgument(that.getClass() == getClass(), "Expect %s but %s", getClass(), that.getClass());
         if (this == that) return 0;
-        return bigInteger.compareTo(((Md5Key) that).bigInteger);
+        Md5Key thatKey = (Md5Key) that;
+        int result = compare(high, thatKey.high);
+        return result != 0 ? result : compare(low, thatKey.low);
+    }
+
+    /** Compare to the key encoded at the absolute position of buffer, as unsigned big-endian bytes. */
+    int compareTo(ByteBuffer buffer, int position) {
+        int result = compare(high, buffer.getLong(position));
+        return result != 0 ? result : compare(low, buffer.getLong(position + 8));
     }
 
 }
@@ -16,13 +16,17 @@
 
 package com.github.zhongl.api;
 
+import com.github.zhongl.index.BytesComparable;
+import com.github.zhongl.index.BytesHashable;
+import com.github.zhongl.index.Interpolatable;
 import com.github.zhongl.index.Key;
 import com.github.zhongl.index.KeyCodec;
+import com.google.common.primitives.Longs;
 
 import java.nio.ByteBuffer;
 
 /** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
-public class Md5KeyCodec implements KeyCodec {
+public class Md5KeyCodec implements KeyCodec, Interpolatable, BytesComparable, BytesHashable {
     @Override
     public Md5Key decode(ByteBuffer byteBuffer) {
         byte[] bytes = new byte[Md5Key.BYTE_LENGTH];
@@ -39,4 +43,28 @@ public class Md5KeyCodec implements KeyCodec {
     public int length() {
         return Md5Key.BYTE_LENGTH;
     }
+
+    /** Md5 is uniformly distributed, the highest 8 bytes as an unsigned long is good enough. */
+    @Override
+    public long ordinal(Key key) {
+        return Longs.fromByteArray(((Md5Key) key).toBytes()) ^ Long.MIN_VALUE;
+    }
+
+    @Override
+    public long ordinal(ByteBuffer buffer, int position) {
+        return buffer.getLong(position) ^ Long.MIN_VALUE;
+    }
+
+    @Override
+    public int compare(Key key, ByteBuffer buffer, int position) {
+        return ((Md5Key) key).compareTo(buffer, position);
+    }
+
+    /** The same as {@link Md5Key#highHash()}. */
+    @Override
+    public long highHash(ByteBuffer buffer, int position) { return buffer.getLong(position); }
+
+    /** The same as {@link Md5Key#lowHash()}. */
+    @Override
+    public long lowHash(ByteBuffer buffer, int position) { return buffer.getLong(position + 8); }
 }
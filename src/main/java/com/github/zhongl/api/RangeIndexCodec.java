@@ -16,17 +16,23 @@
 
 package com.github.zhongl.api;
 
+import com.github.zhongl.index.BytesComparable;
+import com.github.zhongl.index.BytesHashable;
 import com.github.zhongl.index.Index;
 import com.github.zhongl.index.IndexCodec;
+import com.github.zhongl.index.Interpolatable;
 import com.github.zhongl.index.Key;
 import com.github.zhongl.index.KeyCodec;
+import com.github.zhongl.index.WideHashable;
 import com.github.zhongl.page.Range;
 import com.google.common.base.Function;
 
 import java.nio.ByteBuffer;
 
 /** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
-public class RangeIndexCodec implements IndexCodec, IndexFactory {
+public class RangeIndexCodec implements IndexCodec, IndexFactory, Interpolatable, BytesComparable, BytesHashable {
+    private static final long REMOVED = -1L;
+
     private final KeyCodec keyCodec;
 
     public RangeIndexCodec(KeyCodec keyCodec) {
@@ -35,13 +41,20 @@ public class RangeIndexCodec implements IndexCodec, IndexFactory {
 
     @Override
     public Index decode(ByteBuffer byteBuffer) {
-        return index(keyCodec.decode(byteBuffer), new Range(byteBuffer.getLong(), byteBuffer.getLong()));
+        Key key = keyCodec.decode(byteBuffer);
+        long from = byteBuffer.getLong();
+        long to = byteBuffer.getLong();
+        if (from == REMOVED) return removedIndex(key);
+        return index(key, new Range(from, to));
     }
 
+    /** A removed index would be encoded with {@link #REMOVED} range, which shadows the key in older index runs. */
     @Override
     public ByteBuffer encode(Index value) {
         final ByteBuffer buffer = ByteBuffer.allocate(length()).put(keyCodec.encode(value.key()));
 
+        if (value.isRemoved()) return (ByteBuffer) buffer.putLong(REMOVED).putLong(REMOVED).flip();
+
         value.get(new Function<Range, Void>() {
             @Override
             public Void apply(Range range) {
@@ -57,6 +70,38 @@ public class RangeIndexCodec implements IndexCodec, IndexFactory {
         return keyCodec.length() + 16;
     }
 
+    @Override
+    public long ordinal(Key key) {
+        if (keyCodec instanceof Interpolatable) return ((Interpolatable) keyCodec).ordinal(key);
+        return 0L;
+    }
+
+    @Override
+    public long ordinal(ByteBuffer buffer, int position) {
+        if (keyCodec instanceof Interpolatable) return ((Interpolatable) keyCodec).ordinal(buffer, position);
+        return 0L;
+    }
+
+    @Override
+    public int compare(Key key, ByteBuffer buffer, int position) {
+        if (keyCodec instanceof BytesComparable) return ((BytesComparable) keyCodec).compare(key, buffer, position);
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.limit(position + keyCodec.length()).position(position);
+        return key.compareTo(keyCodec.decode(duplicate));
+    }
+
+    @Override
+    public long highHash(ByteBuffer buffer, int position) {
+        if (keyCodec instanceof BytesHashable) return ((BytesHashable) keyCodec).highHash(buffer, position);
+        return wideHashableAt(buffer, position).highHash();
+    }
+
+    @Override
+    public long lowHash(ByteBuffer buffer, int position) {
+        if (keyCodec instanceof BytesHashable) return ((BytesHashable) keyCodec).lowHash(buffer, position);
+        return wideHashableAt(buffer, position).lowHash();
+    }
+
     @Override
     public Index removedIndex(Key key) {
         return new Index(key) {
@@ -77,6 +122,12 @@ public class RangeIndexCodec implements IndexCodec, IndexFactory {
         return new RangeIndex(key, range);
     }
 
+    private WideHashable wideHashableAt(ByteBuffer buffer, int position) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.limit(position + keyCodec.length()).position(position);
+        return (WideHashable) keyCodec.decode(duplicate);
+    }
+
     private static class RangeIndex extends Index {
         private final Range range;
 
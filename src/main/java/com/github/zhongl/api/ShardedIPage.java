@@ -0,0 +1,186 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.codec.Codec;
+import com.github.zhongl.util.FutureCallbacks;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Iterators;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * {@link ShardedIPage} partitions keys by range of {@link Md5Key} into independent {@link IPage}s, each has its own
+ * directory, {@link Snapshot} and {@link Actor}, so that merges and fsyncs of different shards run in parallel.
+ * <p/>
+ * Each shard is given {@code 1 / shards} of throughout. Values are iterated shard by shard, so the order of adding is
+ * only kept in a shard.
+ * <p/>
+ * The number of shards is persisted in {@code SHARDS} of {@code dir} at first opening, since keys would be routed to
+ * wrong shards if it changed, so opening with a different one would fail.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@ThreadSafe
+public abstract class ShardedIPage<K, V> implements Iterable<V> {
+
+    private static final String SHARDS = "SHARDS";
+
+    private final IPage<Md5Key, V>[] shards;
+
+    protected ShardedIPage(File dir, Codec<V> valueCodec, int shards, int throughout, long flushMillis, int flushCount)
+            throws Exception {
+        checkArgument(shards > 0, "At least one shard.");
+        checkShards(dir, shards);
+        this.shards = new IPage[shards];
+        int shardThroughout = Math.max(1, throughout / shards);
+        try {
+            for (int i = 0; i < shards; i++) {
+                String name = "IPage@" + dir.getName() + "/" + i; // unique among shards
+                File shardDir = new File(dir, i + "");
+                this.shards[i] = new IPage<Md5Key, V>(name, shardDir, valueCodec, shardThroughout, flushMillis, flushCount) {
+                    @Override
+                    protected Md5Key transform(Md5Key key) { return key; }
+                };
+            }
+        } catch (Exception e) {
+            for (IPage<Md5Key, V> shard : this.shards) if (shard != null) shard.stop(); // unregister mbeans
+            throw e;
+        }
+    }
+
+    public void start() {
+        for (IPage<Md5Key, V> shard : shards) shard.start();
+    }
+
+    public void stop() {
+        for (IPage<Md5Key, V> shard : shards) shard.stop();
+    }
+
+    public void add(K key, V value, FutureCallback<Void> removedOrDurableCallback) {
+        Md5Key md5Key = transform(key);
+        shardOf(md5Key).add(md5Key, value, removedOrDurableCallback);
+    }
+
+    public void remove(K key, FutureCallback<Void> appliedCallback) {
+        Md5Key md5Key = transform(key);
+        shardOf(md5Key).remove(md5Key, appliedCallback);
+    }
+
+    /** Add entries as batches of shards, the callback would be invoked once for all. */
+    public void addAll(Map<K, V> entries, FutureCallback<Void> removedOrDurableCallback) {
+        Map<Md5Key, V>[] batches = new Map[shards.length];
+        for (Map.Entry<K, V> entry : entries.entrySet()) {
+            Md5Key md5Key = transform(entry.getKey());
+            int i = indexOf(md5Key);
+            if (batches[i] == null) batches[i] = new HashMap<Md5Key, V>();
+            batches[i].put(md5Key, entry.getValue());
+        }
+
+        FutureCallback<Void> callback = FutureCallbacks.aggregate(countNonNull(batches), removedOrDurableCallback);
+        for (int i = 0; i < batches.length; i++) if (batches[i] != null) shards[i].addAll(batches[i], callback);
+    }
+
+    /** Remove keys as batches of shards, the callback would be invoked once for all. */
+    public void removeAll(Collection<K> keys, FutureCallback<Void> appliedCallback) {
+        List<Md5Key>[] batches = new List[shards.length];
+        for (K key : keys) {
+            Md5Key md5Key = transform(key);
+            int i = indexOf(md5Key);
+            if (batches[i] == null) batches[i] = new ArrayList<Md5Key>();
+            batches[i].add(md5Key);
+        }
+
+        FutureCallback<Void> callback = FutureCallbacks.aggregate(countNonNull(batches), appliedCallback);
+        for (int i = 0; i < batches.length; i++) if (batches[i] != null) shards[i].removeAll(batches[i], callback);
+    }
+
+    public V get(K key) {
+        Md5Key md5Key = transform(key);
+        return shardOf(md5Key).get(md5Key);
+    }
+
+    public ListenableFuture<V> getAsync(K key) {
+        Md5Key md5Key = transform(key);
+        return shardOf(md5Key).getAsync(md5Key);
+    }
+
+    public Map<K, V> getAll(Collection<K> keys) {
+        Map<Md5Key, K>[] batches = new Map[shards.length];
+        for (K key : keys) {
+            Md5Key md5Key = transform(key);
+            int i = indexOf(md5Key);
+            if (batches[i] == null) batches[i] = new HashMap<Md5Key, K>();
+            batches[i].put(md5Key, key);
+        }
+
+        Map<K, V> map = new HashMap<K, V>(keys.size() * 2);
+        for (int i = 0; i < batches.length; i++) {
+            if (batches[i] == null) continue;
+            for (Map.Entry<Md5Key, V> entry : shards[i].getAll(batches[i].keySet()).entrySet())
+                map.put(batches[i].get(entry.getKey()), entry.getValue());
+        }
+        return map;
+    }
+
+    @Override
+    public Iterator<V> iterator() {
+        Iterator<V>[] iterators = new Iterator[shards.length];
+        for (int i = 0; i < shards.length; i++) iterators[i] = shards[i].iterator();
+        return Iterators.concat(iterators);
+    }
+
+    protected abstract Md5Key transform(K key);
+
+    private IPage<Md5Key, V> shardOf(Md5Key key) { return shards[indexOf(key)]; }
+
+    /** By the highest 4 bytes, rather than hash code which is also used for striping in a shard. */
+    private int indexOf(Md5Key key) {
+        long ordinal = key.highHash() >>> 32;
+        return (int) (ordinal * shards.length >>> 32);
+    }
+
+    /** Persist the number of shards at first opening, or check it is the same as before. */
+    private static void checkShards(File dir, int shards) {
+        File file = new File(dir, SHARDS);
+        try {
+            if (file.exists()) {
+                int persisted = Integer.parseInt(Files.toString(file, Charsets.UTF_8).trim());
+                checkArgument(persisted == shards, "%s was opened with %s shards, but now %s.", dir, persisted, shards);
+            } else {
+                dir.mkdirs();
+                Files.write(shards + "", file, Charsets.UTF_8);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int countNonNull(Object[] array) {
+        int count = 0;
+        for (Object o : array) if (o != null) count++;
+        return count;
+    }
+}
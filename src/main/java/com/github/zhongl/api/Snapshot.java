@@ -18,6 +18,9 @@ package com.github.zhongl.api;
 
 import com.github.zhongl.codec.Codec;
 import com.github.zhongl.index.*;
+import com.github.zhongl.io.MappedFiles;
+import com.github.zhongl.io.ReadOnlyChannels;
+import com.github.zhongl.io.ReadOnlyFiles;
 import com.github.zhongl.page.*;
 import com.github.zhongl.util.Entry;
 import com.google.common.base.Function;
@@ -30,18 +33,35 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 /** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
 class Snapshot<V> {
+    private static final boolean MMAP = Boolean.getBoolean("ipage.snapshot.pages.mmap");
+    private static final int APPLY_CHUNK = Integer.getInteger("ipage.snapshot.defragment.apply.chunk", 4096);
+    private static final Function<Range, Range> RANGE = new Function<Range, Range>() {
+        @Override
+        public Range apply(Range range) { return range; }
+    };
+
     private final File headFile;
     private final File pagesDir;
-    private final Indices indices;
+    private final File spillDir;
+    private final IndexCodec indexCodec;
+    private final TieredIndices indices;
     private final Binder<Entry<Key, V>> binder;
+    private final ReadOnlyFiles readOnlyFiles;
+
+    private Defragment defragment; // accessed in merging thread only
 //    private final Set<String> fileNames;
 
     public Snapshot(File dir, final IndexCodec indexCodec, final Codec<Entry<Key, V>> entryCodec) {
         headFile = new File(dir, "HEAD");
         pagesDir = new File(dir, "pages");
+        spillDir = new File(dir, "spill");
+        this.indexCodec = indexCodec;
+        cleanUpSpilled();
+        readOnlyFiles = MMAP ? new MappedFiles() : new ReadOnlyChannels();
 //        fileNames = new HashSet<String>();
 
         try {
@@ -56,7 +76,9 @@ class Snapshot<V> {
                             return new Page<Entry<Key, V>>(
                                     new File(pagesDir, iterator.next()),
                                     new Offset(iterator.next()),
-                                    entryCodec
+                                    entryCodec,
+                                    readOnlyFiles,
+                                    iterator.hasNext() ? Long.parseLong(iterator.next()) : 0L
                             );
                         }
                     });
@@ -64,7 +86,9 @@ class Snapshot<V> {
                     bind("I", new Builder() {
                         @Override
                         public Object build(Iterator<String> iterator) {
-                            return new Indices(new File(pagesDir, iterator.next()), indexCodec);
+                            File file = new File(pagesDir, iterator.next());
+                            File bloomFilterFile = iterator.hasNext() ? new File(pagesDir, iterator.next()) : null;
+                            return new Indices(file, indexCodec, bloomFilterFile);
                         }
                     });
                 }
@@ -81,10 +105,11 @@ class Snapshot<V> {
             String snapshotFileName = Files.readFirstLine(headFile, Charset.defaultCharset());
             if (snapshotFileName != null) parser.parse(new File(pagesDir, snapshotFileName));
 
-            this.indices = parser.getFirst(Indices.class);
+            List<Indices> runs = (List<Indices>) parser.getAll(Indices.class);
+            this.indices = new TieredIndices(pagesDir, runs, indexCodec);
 
             List<Page<Entry<Key, V>>> list = (List<Page<Entry<Key, V>>>) parser.getAll(Page.class);
-            this.binder = new Binder<Entry<Key, V>>(pagesDir, list, entryCodec);
+            this.binder = new Binder<Entry<Key, V>>(pagesDir, list, entryCodec, readOnlyFiles);
         } catch (IOException e) {
             throw new IllegalStateException(e);
         }
@@ -104,7 +129,97 @@ class Snapshot<V> {
         binder.append(values, collector);
     }
 
+    /**
+     * Prepare a defragment of current pages, which could be called in another thread,
+     * and should be {@link #applyDefragment()}ed or {@link #abortDefragment()}ed in merging thread after it is done.
+     *
+     * @return null if there is no page.
+     */
+    public Callable<Void> prepareDefragment(Function<Element<Entry<Key, V>>, Index> indexer) {
+        List<Page<Entry<Key, V>>> view = binder.pages();
+        if (view.isEmpty()) return null;
+        defragment = new Defragment(view, binder.reserve(view), indexer);
+        return defragment;
+    }
+
+    public boolean isDefragmenting() { return defragment != null; }
+
+    public void applyDefragment() throws IOException {
+        try {
+            defragment.apply();
+        } finally {
+            abortDefragment();
+        }
+    }
+
+    public void abortDefragment() {
+        if (defragment.page != null) binder.discard(defragment.page);
+        defragment.difference.close();
+        defragment = null;
+    }
+
+    /** @return a difference bounded in memory, which should be closed after using. */
+    public SpillableDifference newSpillableDifference() { return new SpillableDifference(spillDir, indexCodec); }
+
+    /**
+     * Relocate alive entries of pages whose garbage ratio is not less than {@code garbageRatio}, and index them
+     * before the pages are dropped.
+     *
+     * @return true if any page was relocated.
+     */
+    public boolean compact(double garbageRatio, final Function<Element<Entry<Key, V>>, Index> indexer) throws IOException {
+        final SpillableDifference difference = newSpillableDifference();
+        try {
+            return compact(garbageRatio, indexer, difference);
+        } finally {
+            difference.close();
+        }
+    }
+
+    private boolean compact(
+            double garbageRatio,
+            final Function<Element<Entry<Key, V>>, Index> indexer,
+            final Difference difference
+    ) throws IOException {
+        List<Page<Entry<Key, V>>> relocated = binder.relocate(
+                garbageRatio,
+                new Predicate<Element<Entry<Key, V>>>() {
+                    @Override
+                    public boolean apply(Element<Entry<Key, V>> element) { return !isRemoved(element); }
+                },
+                new Function<Element<Entry<Key, V>>, Void>() {
+                    @Override
+                    public Void apply(Element<Entry<Key, V>> element) {
+                        difference.add(indexer.apply(element));
+                        return null;
+                    }
+                }
+        );
+        if (relocated.isEmpty()) return false;
+        indices.merge(difference);
+        binder.drop(relocated);
+        return true;
+    }
+
+    /** @return ranges of alive entries of keys, it should be called before their difference is merged. */
+    public List<Range> rangesOf(Collection<Key> keys) {
+        if (keys.isEmpty()) return Collections.emptyList();
+        List<Key> sortedKeys = new ArrayList<Key>(new TreeSet<Key>(keys));
+        List<Range> ranges = new ArrayList<Range>(sortedKeys.size());
+        for (Index index : indices.get(sortedKeys)) {
+            if (index != null) ranges.add(index.<Range, Range>get(RANGE));
+        }
+        return ranges;
+    }
+
+    /** Account ranges as garbage, it should be called after the difference shadowing them has been merged. */
+    public void markDead(Collection<Range> ranges) {
+        for (Range range : ranges) binder.markDead(range);
+    }
+
     public void updateAndCleanUp() throws IOException {
+        File[] files = pagesDir.listFiles(); // before collecting, so that a new file created after would be kept.
+
         final Set<String> fileNames = new HashSet<String>();
         final StringBuilder sb = new StringBuilder();
 
@@ -113,14 +228,18 @@ class Snapshot<V> {
             public Void apply(Page<Entry<Key, V>> page) {
                 sb.append("P").append('\t')
                   .append(page.fileName()).append('\t')
-                  .append(page.number().toString()).append('\n');
+                  .append(page.number().toString()).append('\t')
+                  .append(page.deadBytes()).append('\n');
                 fileNames.add(page.fileName());
                 return null;
             }
         });
 
-        sb.append("I").append('\t').append(indices.fileName()).append('\n');
-        fileNames.add(indices.fileName());
+        for (Indices run : indices.runs(fileNames)) {
+            sb.append("I").append('\t').append(run.fileName());
+            if (run.bloomFilterFileName() != null) sb.append('\t').append(run.bloomFilterFileName());
+            sb.append('\n');
+        }
 
         File snapshotFile = new File(pagesDir, System.nanoTime() + ".s");
         fileNames.add(snapshotFile.getName());
@@ -128,8 +247,11 @@ class Snapshot<V> {
         Files.write(sb.toString().getBytes(), snapshotFile);
         Files.write(snapshotFile.getName().getBytes(), headFile);
 
-        File[] files = pagesDir.listFiles();
-        for (File file : files) if (!fileNames.contains(file.getName())) file.delete();
+        for (File file : files) {
+            if (fileNames.contains(file.getName()) || binder.isWriting(file.getName())) continue;
+            readOnlyFiles.close(file);
+            file.delete();
+        }
         fileNames.clear();
     }
 
@@ -149,6 +271,36 @@ class Snapshot<V> {
 
     }
 
+    /** Search sorted keys in one pass of indices, then read values in ascending offset. */
+    public Map<Key, V> getAll(Collection<Key> keys) {
+        List<Key> sortedKeys = new ArrayList<Key>(new TreeSet<Key>(keys));
+        Index[] found = indices.get(sortedKeys);
+
+        List<Element<Key>> elements = new ArrayList<Element<Key>>(found.length);
+        for (int i = 0; i < found.length; i++) {
+            if (found[i] == null) continue;
+            elements.add(new Element<Key>(sortedKeys.get(i), found[i].<Range, Range>get(RANGE)));
+        }
+        Collections.sort(elements, new Comparator<Element<Key>>() {
+            @Override
+            public int compare(Element<Key> o1, Element<Key> o2) {
+                return o1.range().from() < o2.range().from() ? -1 : (o1.range().from() == o2.range().from() ? 0 : 1);
+            }
+        });
+
+        List<Range> ranges = new ArrayList<Range>(elements.size());
+        for (Element<Key> element : elements) ranges.add(element.range());
+
+        try {
+            List<Entry<Key, V>> entries = binder.get(ranges);
+            Map<Key, V> map = new HashMap<Key, V>(entries.size() * 2);
+            for (int i = 0; i < entries.size(); i++) map.put(elements.get(i).value(), entries.get(i).value());
+            return map;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     public Iterator<V> iterator() {
         return new AbstractIterator<V>() {
             final Iterator<Element<Entry<Key, V>>> iterator = binder.iterator();
@@ -181,9 +333,99 @@ class Snapshot<V> {
 
     public void merge(Difference difference) throws IOException { indices.merge(difference); }
 
-    public int aliveSize() { return indices.size(); }
+    public void close() {
+        binder.close();
+        indices.close();
+    }
+
+    /** @param difference should contain all alive entries, since the others would be dropped. */
+    public void replace(Difference difference) throws IOException { indices.replace(difference); }
+
+    public int aliveSize() { return indices.aliveSize(); }
+
+    private void cleanUpSpilled() {
+        File[] files = spillDir.listFiles(); // left by a crash
+        if (files == null) return;
+        for (File file : files) file.delete();
+    }
+
+    public long garbageBytes() { return binder.deadBytes(); }
 
     public long diskOccupiedBytes() {
         return binder.diskOccupiedBytes() + indices.diskOccupiedBytes();
     }
+
+    /**
+     * Defragment pages of a view into reserved offsets, then swap them in with changes happened meanwhile kept,
+     * since pages appended meanwhile are after the reserved offsets.
+     */
+    private class Defragment implements Callable<Void> {
+        private final List<Page<Entry<Key, V>>> view;
+        private final Offset base;
+        private final Function<Element<Entry<Key, V>>, Index> indexer;
+        private final SpillableDifference difference;
+        private volatile Page<Entry<Key, V>> page;
+
+        Defragment(List<Page<Entry<Key, V>>> view, Offset base, Function<Element<Entry<Key, V>>, Index> indexer) {
+            this.view = view;
+            this.base = base;
+            this.indexer = indexer;
+            this.difference = newSpillableDifference();
+        }
+
+        @Override
+        public Void call() throws Exception {
+            page = binder.defrag(
+                    view,
+                    base,
+                    new Predicate<Element<Entry<Key, V>>>() {
+                        @Override
+                        public boolean apply(Element<Entry<Key, V>> element) { return !isRemoved(element); }
+                    },
+                    new Function<Element<Entry<Key, V>>, Void>() {
+                        @Override
+                        public Void apply(Element<Entry<Key, V>> element) {
+                            difference.add(indexer.apply(element));
+                            return null;
+                        }
+                    }
+            );
+            return null;
+        }
+
+        /** Entries whose index still points to the view are unchanged, the others were updated or removed meanwhile. */
+        void apply() throws IOException {
+            if (page != null) {
+                binder.insert(page);
+
+                SpillableDifference unchanged = newSpillableDifference();
+                try {
+                    List<Index> chunk = new ArrayList<Index>(APPLY_CHUNK);
+                    for (Index index : difference) {
+                        chunk.add(index);
+                        if (chunk.size() < APPLY_CHUNK) continue;
+                        collectUnchanged(chunk, unchanged);
+                        chunk.clear();
+                    }
+                    collectUnchanged(chunk, unchanged);
+                    indices.merge(unchanged);
+                } finally {
+                    unchanged.close();
+                }
+            }
+            binder.drop(view);
+        }
+
+        private void collectUnchanged(List<Index> sortedIndices, Difference unchanged) {
+            List<Key> sortedKeys = new ArrayList<Key>(sortedIndices.size());
+            for (Index index : sortedIndices) sortedKeys.add(index.key());
+            Index[] current = indices.get(sortedKeys);
+
+            for (int i = 0; i < current.length; i++) {
+                Index index = sortedIndices.get(i);
+                if (current[i] != null && current[i].<Range, Range>get(RANGE).from() < base.value()) unchanged.add(index);
+                else binder.markDead(index.<Range, Range>get(RANGE));
+            }
+        }
+    }
 }
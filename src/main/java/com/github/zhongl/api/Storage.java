@@ -19,62 +19,94 @@ package com.github.zhongl.api;
 import com.github.zhongl.index.Difference;
 import com.github.zhongl.index.Index;
 import com.github.zhongl.index.Key;
+import com.github.zhongl.index.SpillableDifference;
 import com.github.zhongl.page.Element;
+import com.github.zhongl.page.Range;
 import com.github.zhongl.util.Entry;
 import com.github.zhongl.util.Nils;
 import com.google.common.base.Function;
 import com.google.common.base.Predicate;
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.Iterables;
 import com.google.common.util.concurrent.FutureCallback;
 import org.softee.management.annotation.MBean;
 import org.softee.management.annotation.ManagedAttribute;
 
 import java.io.IOException;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.TreeSet;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static com.google.common.collect.Collections2.transform;
+import static com.google.common.collect.Iterables.concat;
 
 /** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
 @MBean
 class Storage<V> implements Iterable<V> {
+    static final boolean BACKGROUND_DEFRAG = Boolean.getBoolean("ipage.storage.background.defrag");
+
     private final Logger logger;
     private final Snapshot<V> snapshot;
     private final DefragPolicy defragPolicy;
     private final IndexFactory indexFactory;
+    private final ValueCache<V> valueCache;
+    private final ExecutorService defragExecutor;
 
+    private Future<Void> defragment; // accessed in merging thread only
+    private long appendedBytes; // accessed in merging thread only
     private volatile Behavior lastBehavior = Behavior.NONE;
     private volatile long lastBehaviorElapseMillis;
 
-    Storage(Snapshot<V> snapshot, IndexFactory indexFactory, DefragPolicy defragPolicy) {
+    Storage(Snapshot<V> snapshot, IndexFactory indexFactory, DefragPolicy defragPolicy, ValueCache<V> valueCache) {
+        this(snapshot, indexFactory, defragPolicy, valueCache, BACKGROUND_DEFRAG ? newDefragExecutor() : null);
+    }
+
+    /** @param defragExecutor runs defragment in background if it is not null, otherwise defragment is run in merging. */
+    Storage(
+            Snapshot<V> snapshot,
+            IndexFactory indexFactory,
+            DefragPolicy defragPolicy,
+            ValueCache<V> valueCache,
+            ExecutorService defragExecutor
+    ) {
+        this.defragExecutor = defragExecutor;
         this.logger = Logger.getLogger(getClass().getName());
         this.snapshot = snapshot;
         this.defragPolicy = defragPolicy;
         this.indexFactory = indexFactory;
+        this.valueCache = valueCache;
     }
 
-    public void merge(
+    /** @return false if any operation failed to be merged. */
+    public boolean merge(
             Collection<WriteOperation<Entry<Key, V>>> addOrUpdates,
             Collection<WriteOperation<Key>> removes,
             FutureCallback<Void> flushedCallback
     ) {
         Stopwatch stopwatch = new Stopwatch().start();
+        appendedBytes = 0L;
+        boolean merged = false;
         try {
+            applyDefragmentIfDone();
             if (defragPolicy.evaluate(snapshot.aliveSize(), addOrUpdates.size() - removes.size())) {
-                defrag(addOrUpdates, removes);
-                lastBehavior = Behavior.DEFRAG;
+                if (defragExecutor == null) {
+                    defrag(addOrUpdates, removes);
+                    lastBehavior = Behavior.DEFRAG;
+                } else {
+                    append(addOrUpdates, removes);
+                    startDefragment();
+                    lastBehavior = Behavior.APPEND;
+                }
             } else {
                 append(addOrUpdates, removes);
-                lastBehavior = Behavior.APPEND;
+                lastBehavior = compact() ? Behavior.COMPACT : Behavior.APPEND;
             }
+            invalidate(addOrUpdates, removes); // before callbacks, since ephemerons would be released by them
             onSuccess(addOrUpdates);
             onSuccess(removes);
             snapshot.updateAndCleanUp();
-
+            merged = true;
         } catch (OutOfMemoryError e) {
             logger.log(Level.WARNING, "Reject add or update operations because ", e);
             onFailure(addOrUpdates, e);
@@ -89,14 +121,46 @@ class Storage<V> implements Iterable<V> {
         } finally {
             flushedCallback.onSuccess(Nils.VOID);
             lastBehaviorElapseMillis = stopwatch.stop().elapsedMillis();
+            measure();
         }
+        return merged;
     }
 
-    public V get(Key key) { return snapshot.get(key); }
+    public V get(Key key) {
+        V value = valueCache.get(key);
+        if (value != null) return value;
+
+        long generation = valueCache.generation();
+        value = snapshot.get(key);
+        if (value != null) valueCache.put(key, value, generation);
+        return value;
+    }
+
+    public Map<Key, V> getAll(Collection<Key> keys) {
+        Map<Key, V> map = new HashMap<Key, V>(keys.size() * 2);
+        List<Key> misses = new ArrayList<Key>();
+        for (Key key : keys) {
+            V value = valueCache.get(key);
+            if (value != null) map.put(key, value);
+            else misses.add(key);
+        }
+        if (misses.isEmpty()) return map;
+
+        long generation = valueCache.generation();
+        Map<Key, V> found = snapshot.getAll(misses);
+        for (Map.Entry<Key, V> entry : found.entrySet()) valueCache.put(entry.getKey(), entry.getValue(), generation);
+        map.putAll(found);
+        return map;
+    }
 
     @Override
     public Iterator<V> iterator() { return snapshot.iterator(); }
 
+    public void stop() {
+        if (defragExecutor != null) defragExecutor.shutdownNow();
+        snapshot.close();
+    }
+
     @ManagedAttribute
     public String getLastBehavior() { return lastBehavior.name(); }
 
@@ -106,15 +170,94 @@ class Storage<V> implements Iterable<V> {
     @ManagedAttribute
     public long getDiskOccupiedBytes() { return snapshot.diskOccupiedBytes(); }
 
+    @ManagedAttribute
+    public long getGarbageBytes() { return snapshot.garbageBytes(); }
+
+    @ManagedAttribute
+    public boolean isDefragmenting() { return defragment != null; }
+
     private void append(Collection<WriteOperation<Entry<Key, V>>> addOrUpdates,
                         Collection<WriteOperation<Key>> removes) throws IOException {
-        append(addOrUpdates, removes, new Difference(new TreeSet<Index>()));
+        Difference difference = new Difference(new TreeSet<Index>());
+        List<Range> shadowed = accountsGarbage()
+                ? snapshot.rangesOf(keysOf(addOrUpdates, removes)) // before merging, since they would be shadowed
+                : Collections.<Range>emptyList();
+        append(addOrUpdates, removes, difference);
+        snapshot.merge(difference);
+        snapshot.markDead(shadowed); // after merging, so a failed one would not leave alive entries as garbage
+    }
+
+    /** Garbage is only worth accounting when compaction or cost based defragment would use it. */
+    private boolean accountsGarbage() {
+        return defragPolicy.getGarbageRatioThreshold() > 0 || defragPolicy.isCostBased();
+    }
+
+    private void measure() {
+        try {
+            defragPolicy.measure(snapshot.garbageBytes(), snapshot.diskOccupiedBytes());
+            if (lastBehavior == Behavior.APPEND && appendedBytes > 0L)
+                defragPolicy.flushed(appendedBytes, lastBehaviorElapseMillis);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Measure failed because ", e);
+        }
+    }
+
+    /** Defragment would be applied by the first merging after it is done, so the flushing never waits for it. */
+    private void startDefragment() {
+        if (defragment != null) return;
+        Callable<Void> callable = snapshot.prepareDefragment(indexer());
+        if (callable != null) defragment = defragExecutor.submit(callable);
+    }
+
+    private void applyDefragmentIfDone() {
+        if (defragment == null || !defragment.isDone()) return;
+        try {
+            defragment.get();
+            snapshot.applyDefragment();
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Defragment failed because ", e);
+            if (snapshot.isDefragmenting()) snapshot.abortDefragment();
+        } finally {
+            defragment = null;
+        }
+    }
+
+    private static ExecutorService newDefragExecutor() {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "storage-defrag");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /** Relocate alive entries of dirty pages only, so that the I/O is proportional to garbage instead of all data. */
+    private boolean compact() {
+        int threshold = defragPolicy.getGarbageRatioThreshold();
+        if (threshold <= 0 || defragment != null) return false; // pages of defragment should not be dropped
+        try {
+            return snapshot.compact(threshold / 100.0, indexer());
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Compact failed because ", e); // merged already, so it would retry next time
+            return false;
+        }
     }
 
     private void defrag(Collection<WriteOperation<Entry<Key, V>>> addOrUpdates,
                         Collection<WriteOperation<Key>> removes) throws IOException {
-        final Difference difference = new Difference(new TreeSet<Index>());
+        final SpillableDifference difference = snapshot.newSpillableDifference(); // alive indices would be spilled
+        try {
+            defrag(addOrUpdates, removes, difference);
+        } finally {
+            difference.close();
+        }
+    }
 
+    private void defrag(Collection<WriteOperation<Entry<Key, V>>> addOrUpdates,
+                        Collection<WriteOperation<Key>> removes,
+                        final Difference difference) throws IOException {
         snapshot.defrag(
                 new Predicate<Element<Entry<Key, V>>>() {
                     @Override
@@ -132,6 +275,7 @@ class Storage<V> implements Iterable<V> {
         );
 
         append(addOrUpdates, removes, difference);
+        snapshot.replace(difference);
     }
 
     private void append(Collection<WriteOperation<Entry<Key, V>>> addOrUpdates,
@@ -152,6 +296,7 @@ class Storage<V> implements Iterable<V> {
                         @Override
                         public Void apply(Element<Entry<Key, V>> element) {
                             difference.add(indexFactory.index(element.value().key(), element.range()));
+                            appendedBytes += element.range().length();
                             return null;
                         }
                     });
@@ -165,8 +310,40 @@ class Storage<V> implements Iterable<V> {
                 }
             }));
         }
+    }
 
-        snapshot.merge(difference);
+    private Function<Element<Entry<Key, V>>, Index> indexer() {
+        return new Function<Element<Entry<Key, V>>, Index>() {
+            @Override
+            public Index apply(Element<Entry<Key, V>> element) {
+                return indexFactory.index(element.value().key(), element.range());
+            }
+        };
+    }
+
+    private void invalidate(Collection<WriteOperation<Entry<Key, V>>> addOrUpdates,
+                            Collection<WriteOperation<Key>> removes) {
+        valueCache.invalidate(keysOf(addOrUpdates, removes));
+    }
+
+    private static <V> Collection<Key> keysOf(Collection<WriteOperation<Entry<Key, V>>> addOrUpdates,
+                                              Collection<WriteOperation<Key>> removes) {
+        List<Key> keys = new ArrayList<Key>(addOrUpdates.size() + removes.size());
+        Iterables.addAll(keys, concat(
+                transform(addOrUpdates, new Function<WriteOperation<Entry<Key, V>>, Key>() {
+                    @Override
+                    public Key apply(WriteOperation<Entry<Key, V>> operation) {
+                        return operation.attachement().key();
+                    }
+                }),
+                transform(removes, new Function<WriteOperation<Key>, Key>() {
+                    @Override
+                    public Key apply(WriteOperation<Key> operation) {
+                        return operation.attachement();
+                    }
+                })
+        ));
+        return keys;
     }
 
     private static void onSuccess(Collection<? extends FutureCallback<Void>> callbacks) {
@@ -177,5 +354,5 @@ class Storage<V> implements Iterable<V> {
         for (FutureCallback<Void> callback : callbacks) callback.onFailure(t);
     }
 
-    private enum Behavior {NONE, DEFRAG, APPEND, FAIL}
+    private enum Behavior {NONE, DEFRAG, APPEND, COMPACT, FAIL}
 }
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.codec.Codec;
+import com.github.zhongl.index.Key;
+import com.github.zhongl.util.DirectByteBufferCleaner;
+import org.softee.management.annotation.Description;
+import org.softee.management.annotation.MBean;
+import org.softee.management.annotation.ManagedAttribute;
+import org.softee.management.annotation.ManagedOperation;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.Math.max;
+
+/**
+ * A LRU cache of encoded values in direct buffers, which is bounded by bytes rather than entries.
+ * <p/>
+ * A buffer is counted references by the cache and readers decoding from it, and freed by the last one released it,
+ * so that evicted buffers never wait for GC.
+ * <p/>
+ * It is disabled by default, and could be enabled by {@code -Dipage.value.cache.capacity.bytes} or JMX.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@ThreadSafe
+@MBean
+class ValueCache<V> {
+    public static final long CAPACITY_BYTES = Long.getLong("ipage.value.cache.capacity.bytes", 0L);
+
+    private final Codec<V> codec;
+
+    @GuardedBy("this")
+    private final LinkedHashMap<Key, Cached> map;
+
+    @GuardedBy("this")
+    private long occupiedBytes;
+
+    private volatile long capacityBytes;
+
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    ValueCache(Codec<V> codec) { this(codec, CAPACITY_BYTES); }
+
+    ValueCache(Codec<V> codec, long capacityBytes) {
+        this.codec = codec;
+        this.map = new LinkedHashMap<Key, Cached>(16, 0.75f, true);
+        setCapacityBytes(capacityBytes);
+    }
+
+    public V get(Key key) {
+        Cached cached;
+        synchronized (this) {
+            cached = map.get(key);
+            if (cached != null) cached.retain();
+        }
+
+        if (cached == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        try {
+            return codec.decode(cached.buffer.duplicate());
+        } finally {
+            cached.release();
+        }
+    }
+
+    /** @return the generation should be passed to {@link #put(Key, Object, long)} after loading value. */
+    public long generation() { return generation.get(); }
+
+    /** Value would be dropped if there is any invalidation happened since the generation. */
+    public void put(Key key, V value, long generation) {
+        long capacity = capacityBytes;
+        if (capacity == 0L) return;
+
+        ByteBuffer encoded = codec.encode(value);
+        if (encoded.remaining() > capacity) return;
+
+        Cached cached = new Cached((ByteBuffer) ByteBuffer.allocateDirect(encoded.remaining()).put(encoded).flip());
+
+        synchronized (this) {
+            if (generation != this.generation.get()) {
+                cached.release();
+                return;
+            }
+            remove(map.put(key, cached));
+            occupiedBytes += cached.buffer.capacity();
+            evictUntil(capacity);
+        }
+    }
+
+    public synchronized void invalidate(Iterable<Key> keys) {
+        generation.incrementAndGet();
+        for (Key key : keys) remove(map.remove(key));
+    }
+
+    @ManagedOperation
+    public synchronized void clear() {
+        generation.incrementAndGet();
+        for (Cached cached : map.values()) cached.release();
+        map.clear();
+        occupiedBytes = 0L;
+    }
+
+    @ManagedAttribute
+    public long getHits() { return hits.get(); }
+
+    @ManagedAttribute
+    public long getMisses() { return misses.get(); }
+
+    @ManagedAttribute
+    public long getEvictions() { return evictions.get(); }
+
+    @ManagedAttribute
+    public synchronized int getSize() { return map.size(); }
+
+    @ManagedAttribute
+    public synchronized long getOccupiedBytes() { return occupiedBytes; }
+
+    @ManagedAttribute
+    public long getCapacityBytes() { return capacityBytes; }
+
+    @ManagedAttribute
+    @Description("Capacity of cache, 0 means disabled")
+    public void setCapacityBytes(@Description("Bytes in [0, Long.MAX_VALUE]") long capacityBytes) {
+        this.capacityBytes = max(0L, capacityBytes);
+        synchronized (this) {
+            evictUntil(this.capacityBytes);
+        }
+    }
+
+    @GuardedBy("this")
+    private void evictUntil(long capacity) {
+        Iterator<Map.Entry<Key, Cached>> iterator = map.entrySet().iterator();
+        while (occupiedBytes > capacity && iterator.hasNext()) {
+            Cached cached = iterator.next().getValue();
+            iterator.remove();
+            remove(cached);
+            evictions.incrementAndGet();
+        }
+    }
+
+    @GuardedBy("this")
+    private void remove(Cached cached) {
+        if (cached == null) return;
+        occupiedBytes -= cached.buffer.capacity();
+        cached.release();
+    }
+
+    /** Retained only with the lock of cache held, so nobody could retain it after it was removed and freed. */
+    private static class Cached {
+        private final ByteBuffer buffer;
+        private final AtomicInteger references = new AtomicInteger(1); // by the cache
+
+        Cached(ByteBuffer buffer) { this.buffer = buffer; }
+
+        void retain() { references.incrementAndGet(); }
+
+        void release() { if (references.decrementAndGet() == 0) DirectByteBufferCleaner.clean(buffer); }
+    }
+}
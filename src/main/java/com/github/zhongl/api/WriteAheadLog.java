@@ -0,0 +1,444 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.codec.Codec;
+import com.github.zhongl.index.Key;
+import com.github.zhongl.io.FileAppender;
+import com.github.zhongl.util.Entry;
+import com.github.zhongl.util.FutureCallbacks;
+import com.github.zhongl.util.Nils;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.FutureCallback;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * An append-only log of adds and removes, callbacks would be invoked after a group {@code fsync}.
+ * <p/>
+ * The log is split into segments, a new one is rolled before each flushing generation is collected, and the oldest is
+ * deleted after the generation has been merged into {@link Storage}. Rolled segments are forced and closed by the
+ * syncer, so neither appending nor flushing waits for an {@code fsync}. Segments left by a crash would be replayed at
+ * startup.
+ * <p/>
+ * Segments of generations failed to be merged are retained, and merged again along with the next generation, so a
+ * record acked by the log is never lost, even if it has been dropped from {@link Ephemerons} by the failure.
+ * <p/>
+ * A record is {@code [length][crc32][type][key][value]}, and a torn one at the tail would be ignored.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@ThreadSafe
+class WriteAheadLog<V> {
+    public static final boolean ENABLED = Boolean.getBoolean("ipage.write.ahead.log");
+
+    private static final byte REMOVE = 0;
+    private static final byte ADD = 1;
+    private static final int HEADER_LENGTH = 8;
+    private static final String SUFFIX = ".w";
+    private static final int MAX_RECORD_LENGTH = FileAppender.MAX_APPEND_BYTES;
+
+    private final Logger logger;
+    private final File dir;
+    private final Codec<V> codec;
+    private final Thread syncer;
+
+    @GuardedBy("this")
+    private final LinkedList<File> sealed;
+
+    private final List<File> retained; // accessed in merging thread only
+
+    @GuardedBy("this")
+    private List<Rolled> rolled;
+
+    @GuardedBy("this")
+    private List<FutureCallback<Void>> pending;
+
+    @GuardedBy("this")
+    private File segment;
+
+    @GuardedBy("this")
+    private FileAppender appender;
+
+    @GuardedBy("this")
+    private boolean appended;
+
+    @GuardedBy("this")
+    private boolean running;
+
+    WriteAheadLog(File dir, Codec<V> codec) {
+        this.logger = Logger.getLogger(getClass().getName());
+        this.dir = dir;
+        this.codec = codec;
+        this.sealed = new LinkedList<File>();
+        this.retained = new ArrayList<File>();
+        this.rolled = new ArrayList<Rolled>();
+        this.pending = new ArrayList<FutureCallback<Void>>();
+        this.syncer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (sync()) ;
+            }
+        }, "write-ahead-log@" + dir.getParentFile().getName());
+        this.syncer.setDaemon(true);
+        dir.mkdirs();
+    }
+
+    /** Merge records of segments left by last run into storage, and then start a new segment. */
+    public void replay(Storage<V> storage) throws IOException {
+        File[] files = segments();
+        Map<Key, V> map = new LinkedHashMap<Key, V>(); // the last one of a key wins
+        for (File file : files) read(file, map);
+
+        if (!map.isEmpty()) {
+            Collection<WriteOperation<Entry<Key, V>>> addOrUpdates = new ArrayList<WriteOperation<Entry<Key, V>>>();
+            Collection<WriteOperation<Key>> removes = new ArrayList<WriteOperation<Key>>();
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            FutureCallback<Void> callback = new FutureCallback<Void>() {
+                @Override
+                public void onSuccess(Void result) { }
+
+                @Override
+                public void onFailure(Throwable t) { failure.compareAndSet(null, t); }
+            };
+
+            operations(map, callback, addOrUpdates, removes);
+            boolean merged = storage.merge(addOrUpdates, removes, FutureCallbacks.<Void>ignore());
+            if (!merged || failure.get() != null) throw new IOException("Replay failed, segments are kept.", failure.get());
+            logger.info("Replayed " + map.size() + " records from " + files.length + " segments.");
+        }
+
+        for (File file : files) file.delete();
+
+        synchronized (this) {
+            open();
+            running = true;
+        }
+        syncer.start();
+    }
+
+    /** @throws IllegalArgumentException if the record is too long to be appended. */
+    public void add(Md5Key key, V value, FutureCallback<Void> durableCallback) {
+        append(addRecord(key, value), durableCallback);
+    }
+
+    public void remove(Md5Key key, FutureCallback<Void> durableCallback) {
+        append(record(REMOVE, key, ByteBuffer.allocate(0)), durableCallback);
+    }
+
+    /**
+     * Encode a record of adding, so that an invalid one could be rejected before being added to {@link Ephemerons}.
+     *
+     * @throws IllegalArgumentException if the record is too long to be appended.
+     */
+    public ByteBuffer addRecord(Md5Key key, V value) { return record(ADD, key, codec.encode(value)); }
+
+    /** @param record encoded by {@link #addRecord(Md5Key, Object)}. */
+    public synchronized void append(ByteBuffer record, FutureCallback<Void> durableCallback) {
+        if (!running) {
+            durableCallback.onFailure(new IllegalStateException("Write ahead log has been closed."));
+            return;
+        }
+        try {
+            appender.append(record);
+        } catch (IOException e) {
+            durableCallback.onFailure(e);
+            return;
+        }
+        appended = true;
+        pending.add(durableCallback);
+        notifyAll();
+    }
+
+    /**
+     * Seal current segment and start a new one, records of the sealed would all be in the next flushing generation.
+     * <p/>
+     * Batched records are only written under the lock, the sealed segment would be forced and closed by the syncer,
+     * which completes callbacks of its records, or fails them if it can't be written.
+     * <p/>
+     * A segment without any record is kept to be the current one, so an idle flushing never creates a new segment.
+     */
+    public synchronized void roll() {
+        if (!running) return;
+        if (!appended) {
+            sealed.add(null); // nothing to checkpoint for the generation
+            return;
+        }
+        Throwable t = null;
+        try {
+            appender.flush();
+        } catch (IOException e) {
+            t = e;
+        }
+        rolled.add(new Rolled(appender, pending, t));
+        pending = new ArrayList<FutureCallback<Void>>();
+        sealed.add(segment); // always sealed, so that it would be checkpointed by its generation
+        open();
+        notifyAll();
+    }
+
+    /**
+     * Merge a flushing generation into storage along with records of retained segments, which are older than the
+     * generation, so they are only merged for keys not in it. Then checkpoint by the result.
+     * <p/>
+     * A record may be reported failed by the merging before its segment is forced, it would still be merged again, so
+     * a failure means the record is not guaranteed to be applied, rather than never.
+     * <p/>
+     * It should be called in merging thread only.
+     *
+     * @return false if any operation failed to be merged.
+     */
+    public boolean merge(
+            Storage<V> storage,
+            Collection<WriteOperation<Entry<Key, V>>> addOrUpdates,
+            Collection<WriteOperation<Key>> removes,
+            FutureCallback<Void> flushedCallback
+    ) {
+        boolean read = true;
+        if (!retained.isEmpty()) {
+            Map<Key, V> map = new LinkedHashMap<Key, V>();
+            try {
+                for (File file : retained) read(file, map);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Can't read retained segments because ", e);
+                read = false;
+            }
+            for (WriteOperation<Entry<Key, V>> operation : addOrUpdates) map.remove(operation.attachement().key());
+            for (WriteOperation<Key> operation : removes) map.remove(operation.attachement());
+
+            addOrUpdates = new ArrayList<WriteOperation<Entry<Key, V>>>(addOrUpdates);
+            removes = new ArrayList<WriteOperation<Key>>(removes);
+            operations(map, FutureCallbacks.<Void>ignore(), addOrUpdates, removes);
+        }
+
+        boolean merged = storage.merge(addOrUpdates, removes, flushedCallback) && read;
+        checkpoint(merged);
+        return merged;
+    }
+
+    /**
+     * Delete the oldest sealed segment and retained ones, since the flushing generation collected after it has been
+     * merged along with records of the retained.
+     * <p/>
+     * Once a generation failed to be merged, its segment would be retained, to be merged again by the next generation,
+     * or replayed at next startup.
+     *
+     * @param merged false means the generation failed to be merged.
+     */
+    public void checkpoint(boolean merged) {
+        File file;
+        synchronized (this) {
+            if (sealed.isEmpty()) return;
+            file = sealed.poll(); // null means the generation has no record
+        }
+        if (!merged) {
+            if (file == null) return;
+            retained.add(file);
+            logger.warning("Merge failed, keep " + file + " to merge it again with the next generation.");
+            return;
+        }
+        for (File failed : retained) delete(failed);
+        retained.clear();
+        if (file != null) delete(file);
+    }
+
+    public void close() {
+        synchronized (this) {
+            if (!running) return;
+            running = false;
+            notifyAll();
+        }
+        try {
+            syncer.join();
+        } catch (InterruptedException ignored) { }
+    }
+
+    private static ByteBuffer record(byte type, Md5Key key, ByteBuffer value) {
+        int length = 1 + Md5Key.BYTE_LENGTH + value.remaining();
+        checkArgument(HEADER_LENGTH + length <= MAX_RECORD_LENGTH,
+                "Record of %s bytes is longer than %s bytes, which can't be logged.", HEADER_LENGTH + length,
+                MAX_RECORD_LENGTH);
+
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        payload.put(type).put(key.toBytes()).put(value).flip();
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload.array(), 0, payload.limit());
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_LENGTH + payload.limit());
+        record.putInt(payload.limit()).putInt((int) crc32.getValue()).put(payload).flip();
+        return record;
+    }
+
+    private static <V> void operations(
+            Map<Key, V> map,
+            FutureCallback<Void> callback,
+            Collection<WriteOperation<Entry<Key, V>>> addOrUpdates,
+            Collection<WriteOperation<Key>> removes
+    ) {
+        for (Map.Entry<Key, V> entry : map.entrySet()) {
+            if (entry.getValue() == Nils.OBJECT) removes.add(new WriteOperation<Key>(entry.getKey(), callback));
+            else addOrUpdates.add(new WriteOperation<Entry<Key, V>>(
+                    new Entry<Key, V>(entry.getKey(), entry.getValue()), callback));
+        }
+    }
+
+    /**
+     * Swap pending callbacks and flush batched records under the lock, but fsync outside it, so that appending (which
+     * holds stripe locks of {@link IPage}) would not be blocked by a slow fsync. Only the syncer closes appenders, so a
+     * segment is never closed during fsync.
+     *
+     * @return false if it has been closed.
+     */
+    private boolean sync() {
+        List<Rolled> segments;
+        List<FutureCallback<Void>> callbacks;
+        FileAppender syncing;
+        boolean closing;
+        Throwable t = null;
+        synchronized (this) {
+            while (running && pending.isEmpty() && rolled.isEmpty()) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    running = false;
+                }
+            }
+
+            segments = rolled;
+            rolled = new ArrayList<Rolled>();
+            callbacks = pending;
+            pending = new ArrayList<FutureCallback<Void>>();
+            syncing = appender;
+            closing = !running;
+            try {
+                if (!callbacks.isEmpty()) appender.flush();
+            } catch (IOException e) {
+                t = e;
+            }
+        }
+
+        for (Rolled segment : segments) segment.force();
+
+        try {
+            if (closing) syncing.force();
+            else if (t == null && !callbacks.isEmpty()) syncing.fsync();
+        } catch (IOException e) {
+            if (t == null) t = e;
+        }
+        if (t != null) logger.log(Level.WARNING, "Sync failed because ", t);
+        complete(callbacks, t);
+        return !closing;
+    }
+
+    @GuardedBy("this")
+    private void open() {
+        segment = new File(dir, System.nanoTime() + SUFFIX);
+        appender = new FileAppender(segment);
+        appended = false;
+    }
+
+    private void delete(File file) {
+        if (!file.delete()) logger.warning("Can't delete " + file);
+    }
+
+    private File[] segments() {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) { return name.endsWith(SUFFIX); }
+        });
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                return Long.valueOf(sequence(o1)).compareTo(sequence(o2));
+            }
+        });
+        return files;
+    }
+
+    private void read(File file, Map<Key, V> map) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.toByteArray(file));
+        while (buffer.remaining() >= HEADER_LENGTH) {
+            int length = buffer.getInt();
+            int crc = buffer.getInt();
+            if (length < 1 + Md5Key.BYTE_LENGTH || length > buffer.remaining()) break; // torn
+
+            CRC32 crc32 = new CRC32();
+            crc32.update(buffer.array(), buffer.position(), length);
+            if ((int) crc32.getValue() != crc) break; // torn
+
+            ByteBuffer payload = (ByteBuffer) buffer.slice().limit(length);
+            buffer.position(buffer.position() + length);
+
+            byte type = payload.get();
+            byte[] bytes = new byte[Md5Key.BYTE_LENGTH];
+            payload.get(bytes);
+            Md5Key key = new Md5Key(bytes);
+
+            map.remove(key);
+            map.put(key, type == ADD ? codec.decode(payload) : (V) Nils.OBJECT);
+        }
+    }
+
+    private static long sequence(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    private static void complete(List<FutureCallback<Void>> callbacks, Throwable t) {
+        for (FutureCallback<Void> callback : callbacks) {
+            if (t == null) callback.onSuccess(Nils.VOID);
+            else callback.onFailure(t);
+        }
+    }
+
+    /** A sealed segment waiting to be forced and closed by the syncer. */
+    private class Rolled {
+        private final FileAppender appender;
+        private final List<FutureCallback<Void>> callbacks;
+        private final Throwable failure;
+
+        private Rolled(FileAppender appender, List<FutureCallback<Void>> callbacks, Throwable failure) {
+            this.appender = appender;
+            this.callbacks = callbacks;
+            this.failure = failure;
+        }
+
+        private void force() {
+            Throwable t = failure;
+            try {
+                appender.force(); // close it even if flushing failed
+            } catch (IOException e) {
+                if (t == null) t = e;
+            }
+            if (t != null) logger.log(Level.WARNING, "Sync rolled segment failed because ", t);
+            complete(callbacks, t);
+        }
+    }
+}
@@ -29,6 +29,9 @@ class WriteOperation<V> implements FutureCallback<Void> {
         this.origin = origin;
     }
 
+    /** For subclass which overrides both callback methods. */
+    protected WriteOperation(V attachment) { this(attachment, null); }
+
     @Override
     public void onSuccess(Void result) {
         origin.onSuccess(result);
@@ -4,5 +4,10 @@ import java.nio.ByteBuffer;
 
 /** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
 public interface Decoder<T> {
+
+    /**
+     * The buffer may be a slice of a memory mapped file, which would be unmapped after decoding, so the value decoded
+     * must copy bytes it needs and never keep a reference to the buffer or its slices.
+     */
     T decode(ByteBuffer byteBuffer);
 }
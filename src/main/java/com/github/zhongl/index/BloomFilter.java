@@ -0,0 +1,145 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.index;
+
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A bloom filter of keys in a sorted index run, which tells a definite miss without searching the run.
+ * <p/>
+ * Probes are derived from two 64 bits hashes by double hashing, and bits are addressed by long, so that a filter could
+ * hold billions of keys. Keys should be {@link WideHashable}, otherwise hashes are spread from {@link Key#hashCode()},
+ * which would never tell apart keys with equal hash codes.
+ * <p/>
+ * Bits are at most {@code 64 * Integer.MAX_VALUE}, a filter for more keys would have a higher false positive
+ * probability than expected.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@ThreadSafe
+class BloomFilter {
+    /** False positive probability of each filter, 0 means disabled. */
+    public static final double FPP = Double.parseDouble(System.getProperty("ipage.bloom.filter.fpp", "0"));
+
+    private static final int VERSION = 0x1b100002; // filters of the older format were probed by 32 bits hash code
+    private static final int HEADER_LENGTH = 12;
+
+    private final int hashes;
+    private final long[] bits;
+    private final long bitSize;
+
+    private BloomFilter(int hashes, long[] bits) {
+        this.hashes = hashes;
+        this.bits = bits;
+        this.bitSize = bits.length * 64L;
+    }
+
+    static BloomFilter create(long expectedSize, double fpp) {
+        checkArgument(fpp > 0.0 && fpp < 1.0, "False positive probability should be in (0, 1)");
+        long n = Math.max(1L, expectedSize);
+        long m = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        int hashes = Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+        return new BloomFilter(hashes, new long[(int) Math.min(Integer.MAX_VALUE, Math.max(1L, (m + 63) / 64))]);
+    }
+
+    /** @return null if it was written in an older format, which should be treated as no filter. */
+    static BloomFilter readFrom(File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.toByteArray(file));
+        checkArgument(buffer.remaining() >= HEADER_LENGTH, "Invalid bloom filter file %s", file);
+        if (buffer.getInt() != VERSION) return null;
+        int hashes = buffer.getInt();
+        long[] bits = new long[buffer.getInt()];
+        checkArgument(buffer.remaining() == bits.length * 8L, "Invalid bloom filter file %s", file);
+        buffer.asLongBuffer().get(bits);
+        return new BloomFilter(hashes, bits);
+    }
+
+    /** @return file of the filter along with the indices file. */
+    static File fileOf(File indicesFile) {
+        String name = indicesFile.getName();
+        if (name.endsWith(".i")) name = name.substring(0, name.length() - 2);
+        return new File(indicesFile.getParentFile(), name + ".b");
+    }
+
+    /** Should only be called before published. */
+    void put(Key key) { put(highHashOf(key), lowHashOf(key)); }
+
+    /** @param highHash and {@code lowHash} of a key, which should only be called before published. */
+    void put(long highHash, long lowHash) {
+        for (int i = 0; i < hashes; i++) {
+            long bit = index(highHash + i * lowHash);
+            bits[((int) (bit >>> 6))] |= 1L << bit;
+        }
+    }
+
+    public boolean mightContain(Key key) {
+        long highHash = highHashOf(key);
+        long lowHash = lowHashOf(key);
+        for (int i = 0; i < hashes; i++) {
+            long bit = index(highHash + i * lowHash);
+            if ((bits[((int) (bit >>> 6))] & (1L << bit)) == 0L) return false;
+        }
+        return true;
+    }
+
+    void writeTo(File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + bits.length * 8);
+        buffer.putInt(VERSION).putInt(hashes).putInt(bits.length).asLongBuffer().put(bits);
+        buffer.rewind();
+
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            FileChannel channel = stream.getChannel();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            channel.force(false);
+        } finally {
+            Closeables.closeQuietly(stream);
+        }
+    }
+
+    private long index(long combined) { return (combined & Long.MAX_VALUE) % bitSize; }
+
+    private static long highHashOf(Key key) {
+        if (key instanceof WideHashable) return ((WideHashable) key).highHash();
+        return mix(key.hashCode());
+    }
+
+    private static long lowHashOf(Key key) {
+        if (key instanceof WideHashable) return ((WideHashable) key).lowHash();
+        return mix(mix(key.hashCode()));
+    }
+
+    /** Finalizer of murmur3, spreads bits of hash code. */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb53a87e9ecabL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
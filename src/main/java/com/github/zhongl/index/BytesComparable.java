@@ -0,0 +1,31 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.index;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link IndexCodec} implemented this compares a key to an encoded one in place, so that {@link Indices} need not
+ * decode any record but the hit one.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+public interface BytesComparable {
+
+    /** @return the same as {@code key.compareTo(decoded)}, where decoded is at the absolute position of buffer. */
+    int compare(Key key, ByteBuffer buffer, int position);
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.index;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link IndexCodec} implemented this hashes an encoded key in place, so that a bloom filter could be built by
+ * merging without decoding records transferred byte-for-byte. Keys of it should be {@link WideHashable}.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+public interface BytesHashable {
+
+    /** @return the same as {@code decoded.highHash()}, where decoded is the key at the absolute position of buffer. */
+    long highHash(ByteBuffer buffer, int position);
+
+    /** @return the same as {@code decoded.lowHash()}, where decoded is the key at the absolute position of buffer. */
+    long lowHash(ByteBuffer buffer, int position);
+}
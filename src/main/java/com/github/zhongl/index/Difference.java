@@ -25,7 +25,7 @@ import java.util.SortedSet;
 @NotThreadSafe
 public class Difference implements Iterable<Index> {
 
-    private final SortedSet<Index> set;
+    protected final SortedSet<Index> set;
 
     public Difference(SortedSet<Index> set) {this.set = set;}
 
@@ -38,6 +38,8 @@ public class Difference implements Iterable<Index> {
         set.add(index);
     }
 
+    public long size() { return set.size(); }
+
     @Override
     public Iterator<Index> iterator() {
         return set.iterator();
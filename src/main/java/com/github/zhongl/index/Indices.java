@@ -16,16 +16,19 @@
 package com.github.zhongl.index;
 
 import com.github.zhongl.io.DirectBuffer;
+import com.github.zhongl.io.Segments;
+import com.github.zhongl.io.Throttle;
 import com.google.common.base.Function;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.util.AbstractList;
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.RandomAccess;
+import java.util.List;
 
 import static com.google.common.collect.Iterators.peekingIterator;
 
@@ -33,75 +36,270 @@ import static com.google.common.collect.Iterators.peekingIterator;
 /** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
 @ThreadSafe
 public class Indices {
+    public static final int ITERATE_CHUNK = Integer.getInteger("ipage.indices.iterate.chunk", 1024);
 
     private final Merger merger;
     private final IndexCodec codec;
     private final DirectBuffer directBuffer;
-    private final SortedIndexList sortedIndexList;
 
-    public Indices(File file, IndexCodec codec) {
+    private volatile long removedSize = -1L;
+    private volatile BloomFilter bloomFilter;
+
+    public Indices(File file, IndexCodec codec) { this(file, codec, (File) null); }
+
+    /** @param bloomFilterFile would be ignored if it is null or not exists. */
+    public Indices(File file, IndexCodec codec, @Nullable File bloomFilterFile) {
+        this(file, codec, loadBloomFilter(bloomFilterFile));
+    }
+
+    Indices(File file, IndexCodec codec, @Nullable BloomFilter bloomFilter) {
+        this(file, codec, bloomFilter, DirectBuffer.MAX_SEGMENT_BYTES);
+    }
+
+    Indices(File file, IndexCodec codec, @Nullable BloomFilter bloomFilter, int maxSegmentBytes) {
         try {
-            this.directBuffer = new DirectBuffer().loadFrom(file);
+            this.directBuffer = new DirectBuffer(maxSegmentBytes).loadFrom(file, codec.length());
             this.codec = codec;
             this.merger = new Merger(file.getParentFile(), codec);
-            this.sortedIndexList = new SortedIndexList();
+            this.bloomFilter = bloomFilter;
         } catch (IOException e) {
             throw new IllegalArgumentException(e);
         }
     }
 
     public Index get(Key key) {
-        int i = Collections.binarySearch(sortedIndexList, new FakeIndex(key));
-        if (i < 0) return null;
-        return sortedIndexList.get(i);
+        BloomFilter filter = bloomFilter;
+        if (filter != null && !filter.mightContain(key)) return null;
+        return directBuffer.readSegments(new Search(key));
+    }
+
+    /**
+     * Search sorted keys in one pass, each search starts from where the previous one stops.
+     *
+     * @param sortedKeys in ascending order.
+     *
+     * @return indices aligned with keys, null means not found.
+     */
+    public Index[] get(final List<Key> sortedKeys) {
+        final BloomFilter filter = bloomFilter;
+        return directBuffer.readSegments(new Function<Segments, Index[]>() {
+            @Override
+            public Index[] apply(Segments segments) {
+                Index[] indices = new Index[sortedKeys.size()];
+                long low = 0L;
+                for (int i = 0; i < indices.length; i++) {
+                    Key key = sortedKeys.get(i);
+                    if (filter != null && !filter.mightContain(key)) continue;
+
+                    Search search = new Search(key);
+                    long found = search.indexOf(segments, low);
+                    if (found < 0) {
+                        low = -(found + 1);
+                    } else {
+                        indices[i] = decode(segments, found);
+                        low = found;
+                    }
+                }
+                return indices;
+            }
+        });
     }
 
     public Indices merge(Difference difference) throws IOException {
-        IndicesFile indicesFile = merger.merge(peekingIterator(iterator()), peekingIterator(difference.iterator()));
-        directBuffer.loadFrom(indicesFile.toFile());
+        File newFile = new File(merger.dir, System.nanoTime() + ".i");
+        BloomFilter filter = merger.newBloomFilter(size() + difference.size());
+        File file = merge(difference.iterator(), new IndicesFile(codec, newFile, null, filter), false).toFile();
+        bloomFilter = filter; // before loading, so that a new key would never be filtered.
+        directBuffer.loadFrom(file, codec.length());
+        removedSize = -1L;
         return this;
     }
 
-    public Iterator<Index> iterator() { return sortedIndexList.iterator(); }
+    /**
+     * Merge delta with this into a new one at {@code file}, and this would never be changed.
+     *
+     * @param keepRemoved true means removed entries should be kept to shadow the ones in older runs.
+     */
+    public Indices merge(Iterator<Index> delta, File file, boolean keepRemoved) throws IOException {
+        return merge(delta, 0L, file, keepRemoved, null);
+    }
 
-    public int size() { return sortedIndexList.size(); }
+    /**
+     * @param deltaSize is used to size the bloom filter, which is built along with merging.
+     * @param throttle  limits writes of the new one, null means unlimited.
+     */
+    public Indices merge(Iterator<Index> delta, long deltaSize, File file, boolean keepRemoved, Throttle throttle)
+            throws IOException {
+        BloomFilter filter = merger.newBloomFilter(size() + deltaSize);
+        File merged = merge(delta, new IndicesFile(codec, file, throttle, filter), keepRemoved).toFile();
+        return new Indices(merged, codec, filter);
+    }
 
-    public String fileName() { return directBuffer.backendFile().getName(); }
+    /** @return an iterator decodes records in chunks of {@link #ITERATE_CHUNK}, each chunk is read at once. */
+    public Iterator<Index> iterator() {
+        return new AbstractIterator<Index>() {
+            private long next = 0L;
+            private Iterator<Index> chunk = Iterators.forArray();
 
-    public long diskOccupiedBytes() { return directBuffer.backendFile().length(); }
+            @Override
+            protected Index computeNext() {
+                if (!chunk.hasNext()) chunk = readChunk();
+                return chunk.hasNext() ? chunk.next() : endOfData();
+            }
 
-    private static class FakeIndex extends Index {
+            private Iterator<Index> readChunk() {
+                return directBuffer.readSegments(new Function<Segments, Iterator<Index>>() {
+                    @Override
+                    public Iterator<Index> apply(Segments segments) {
+                        long end = Math.min(segments.capacity() / codec.length(), next + ITERATE_CHUNK);
+                        List<Index> list = new ArrayList<Index>((int) Math.max(0L, end - next));
+                        for (; next < end; next++) list.add(decode(segments, next));
+                        return list.iterator();
+                    }
+                });
+            }
+        };
+    }
 
-        protected FakeIndex(Key key) { super(key); }
+    public long size() {
+        return directBuffer.readSegments(new Function<Segments, Long>() {
+            @Override
+            public Long apply(Segments segments) { return segments.capacity() / codec.length(); }
+        });
+    }
 
-        @Override
-        public boolean isRemoved() { return false; }
+    /** @return count of removed entries kept in this, it would be scanned at the first time. */
+    public long removedSize() {
+        long size = removedSize;
+        if (size >= 0) return size;
 
-        @Override
-        public <Clue, Value> Value get(Function<Clue, Value> function) { throw new UnsupportedOperationException(); }
+        size = 0L;
+        for (Iterator<Index> iterator = iterator(); iterator.hasNext(); ) if (iterator.next().isRemoved()) size++;
+        removedSize = size;
+        return size;
     }
 
-    private class SortedIndexList extends AbstractList<Index> implements RandomAccess {
+    /** Unmap the file once reads in flight finish, any later read would see it as empty. */
+    public void close() { directBuffer.unload(); }
 
-        @Override
-        public Index get(final int index) {
-            return directBuffer.read(new Function<ByteBuffer, Index>() {
+    public String fileName() { return directBuffer.backendFile().getName(); }
+
+    /** @return null if there is no bloom filter. */
+    public String bloomFilterFileName() {
+        return bloomFilter == null ? null : BloomFilter.fileOf(directBuffer.backendFile()).getName();
+    }
+
+    public long diskOccupiedBytes() {
+        long bytes = directBuffer.backendFile().length();
+        if (bloomFilter != null) bytes += BloomFilter.fileOf(directBuffer.backendFile()).length();
+        return bytes;
+    }
+
+    private static BloomFilter loadBloomFilter(File file) {
+        if (file == null || !file.exists()) return null;
+        try {
+            return BloomFilter.readFrom(file);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private IndicesFile merge(final Iterator<Index> delta, final IndicesFile file, final boolean keepRemoved)
+            throws IOException {
+        if (!(codec instanceof BytesComparable))
+            return merger.merge(peekingIterator(iterator()), peekingIterator(delta), file, keepRemoved);
+
+        final File baseFile = directBuffer.backendFile();
+        try {
+            return directBuffer.readSegments(new Function<Segments, IndicesFile>() {
                 @Override
-                public Index apply(ByteBuffer byteBuffer) {
-                    byteBuffer.limit((index + 1) * codec.length()).position(index * codec.length());
-                    return codec.decode(byteBuffer);
+                public IndicesFile apply(Segments segments) {
+                    try {
+                        return merger.merge(baseFile, segments, delta, file, keepRemoved);
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
                 }
             });
+        } catch (IllegalStateException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Probes by interpolation at first if codec is {@link Interpolatable}, and turns to bisection if keys are not
+     * distributed as expected. Probed records are compared in place if codec is {@link BytesComparable}, so only the
+     * hit one would be decoded.
+     */
+    private class Search implements Function<Segments, Index> {
+        private static final int MAX_INTERPOLATIONS = 8;
+
+        private final Key key;
+        private final long ordinal;
+        private final Interpolatable interpolatable;
+
+        Search(Key key) {
+            this.key = key;
+            this.interpolatable = codec instanceof Interpolatable ? (Interpolatable) codec : null;
+            this.ordinal = interpolatable == null ? 0L : interpolatable.ordinal(key);
         }
 
         @Override
-        public int size() {
-            return directBuffer.read(new Function<ByteBuffer, Integer>() {
-                @Override
-                public Integer apply(ByteBuffer byteBuffer) {
-                    return byteBuffer.capacity() / codec.length();
+        public Index apply(Segments segments) {
+            long i = indexOf(segments, 0L);
+            return i < 0 ? null : decode(segments, i);
+        }
+
+        /** @return index of the key if found, otherwise {@code -(insertion point) - 1}, as {@link java.util.Arrays#binarySearch}. */
+        long indexOf(Segments segments, long low) {
+            long high = segments.capacity() / codec.length() - 1;
+
+            for (int probes = 0; low <= high; probes++) {
+                long mid = (low + high) >>> 1;
+
+                if (interpolatable != null) {
+                    long lowOrdinal = ordinalAt(segments, low);
+                    long highOrdinal = ordinalAt(segments, high);
+                    if (ordinal < lowOrdinal) return -(low + 1);
+                    if (ordinal > highOrdinal) return -(high + 2);
+                    if (probes < MAX_INTERPOLATIONS && highOrdinal != lowOrdinal)
+                        mid = interpolate(low, high, lowOrdinal, highOrdinal);
                 }
-            });
+
+                int result = compareAt(segments, mid);
+                if (result > 0) low = mid + 1;
+                else if (result < 0) high = mid - 1;
+                else return mid;
+            }
+            return -(low + 1);
+        }
+
+        private long ordinalAt(Segments segments, long i) {
+            long position = i * codec.length();
+            return interpolatable.ordinal(segments.bufferAt(position), segments.offsetAt(position));
         }
+
+        private int compareAt(Segments segments, long i) {
+            if (interpolatable != null) {
+                long midOrdinal = ordinalAt(segments, i);
+                if (midOrdinal < ordinal) return 1;
+                if (midOrdinal > ordinal) return -1;
+            }
+            if (codec instanceof BytesComparable) {
+                long position = i * codec.length();
+                return ((BytesComparable) codec).compare(key, segments.bufferAt(position), segments.offsetAt(position));
+            }
+            return key.compareTo(decode(segments, i).key());
+        }
+
+        private long interpolate(long low, long high, long lowOrdinal, long highOrdinal) {
+            double ratio = ((double) ordinal - lowOrdinal) / ((double) highOrdinal - lowOrdinal);
+            return Math.min(high, low + (long) (ratio * (high - low)));
+        }
+    }
+
+    private Index decode(Segments segments, long i) {
+        return codec.decode(segments.slice(i * codec.length(), codec.length()));
     }
 }
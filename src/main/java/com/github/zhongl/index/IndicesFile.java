@@ -17,26 +17,66 @@ package com.github.zhongl.index;
 
 import com.github.zhongl.codec.Encoder;
 import com.github.zhongl.io.FileAppender;
+import com.github.zhongl.io.Throttle;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 
 /** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
 class IndicesFile {
+    private static final int TRANSFER_CHUNK = 1 << 30;
 
     private final FileAppender appender;
     private final Encoder<Index> encoder;
+    private final BloomFilter bloomFilter;
+
+    private boolean bloomFilterWritten;
 
     IndicesFile(File dir, Encoder<Index> encoder) throws IOException {
-        appender = new FileAppender(new File(dir, System.nanoTime() + ".i"));
+        this(encoder, new File(dir, System.nanoTime() + ".i"));
+    }
+
+    IndicesFile(Encoder<Index> encoder, File file) throws IOException { this(encoder, file, null); }
+
+    /** @param throttle limits writes of background maintenance, null means unlimited. */
+    IndicesFile(Encoder<Index> encoder, File file, Throttle throttle) throws IOException {
+        this(encoder, file, throttle, null);
+    }
+
+    /**
+     * @param bloomFilter would be put keys of appended ones, and those transferred should be put by the caller. It is
+     *                    persisted to {@link BloomFilter#fileOf(File)} by {@link #toFile()}, null means disabled.
+     */
+    IndicesFile(Encoder<Index> encoder, File file, Throttle throttle, BloomFilter bloomFilter) throws IOException {
+        appender = new FileAppender(file, throttle);
         this.encoder = encoder;
+        this.bloomFilter = bloomFilter;
     }
 
     public void append(Index index) throws IOException {
         appender.append(encoder.encode(index));
+        if (bloomFilter != null) bloomFilter.put(index.key());
+    }
+
+    public BloomFilter bloomFilter() { return bloomFilter; }
+
+    /** Transfer in chunks, since the length may be greater than 2G. */
+    public void transferFrom(FileChannel channel, long position, long length) throws IOException {
+        while (length > 0) {
+            int chunk = (int) Math.min(length, TRANSFER_CHUNK);
+            appender.transferFrom(channel, position, chunk);
+            position += chunk;
+            length -= chunk;
+        }
     }
 
     public File toFile() throws IOException {
-        return appender.force();
+        File file = appender.force();
+        if (bloomFilter != null && !bloomFilterWritten) {
+            bloomFilter.writeTo(BloomFilter.fileOf(file));
+            bloomFilterWritten = true;
+        }
+        return file;
     }
 }
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.index;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link IndexCodec} implemented this can be searched by interpolation in {@link Indices}, which would hit in one or
+ * two probes if keys are uniformly distributed.
+ * <p/>
+ * An ordinal should never decrease as key increases, so a constant ordinal is still correct but degrades to a binary
+ * search.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+public interface Interpolatable {
+
+    long ordinal(Key key);
+
+    /** @return ordinal of the key encoded at the absolute {@code position} of buffer, without decoding. */
+    long ordinal(ByteBuffer buffer, int position);
+}
@@ -15,27 +15,45 @@
 
 package com.github.zhongl.index;
 
-import com.github.zhongl.codec.Encoder;
+import com.github.zhongl.io.FileChannels;
+import com.github.zhongl.io.Segments;
 import com.google.common.collect.PeekingIterator;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Iterator;
 
+import static com.google.common.base.Preconditions.checkState;
+
 /** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl</a> */
 class Merger {
 
     protected final File dir;
-    protected final Encoder<Index> encoder;
+    protected final IndexCodec codec;
+
+    protected final double bloomFilterFpp;
 
-    Merger(File dir, Encoder<Index> encoder) {
+    Merger(File dir, IndexCodec codec) { this(dir, codec, BloomFilter.FPP); }
+
+    Merger(File dir, IndexCodec codec, double bloomFilterFpp) {
         this.dir = dir;
-        this.encoder = encoder;
+        this.codec = codec;
+        this.bloomFilterFpp = bloomFilterFpp;
     }
 
     public IndicesFile merge(PeekingIterator<Index> base, PeekingIterator<Index> delta) throws IOException {
-        IndicesFile file = new IndicesFile(dir, encoder);
+        return merge(base, delta, new IndicesFile(dir, codec), false);
+    }
 
+    /** @param keepRemoved true means removed entries should be kept to shadow the ones in older runs. */
+    public IndicesFile merge(
+            PeekingIterator<Index> base,
+            PeekingIterator<Index> delta,
+            IndicesFile file,
+            boolean keepRemoved
+    ) throws IOException {
         while (base.hasNext() && delta.hasNext()) {
 
             Index a = base.peek();
@@ -52,20 +70,134 @@ class Merger {
                 base.next();
             }
 
-            if (c.isRemoved()) continue;           // remove this entry
+            if (c.isRemoved() && !keepRemoved) continue; // remove this entry
             file.append(c);
         }
 
-        mergeRestOf(base, file);
-        mergeRestOf(delta, file);
+        mergeRestOf(base, file, keepRemoved);
+        mergeRestOf(delta, file, keepRemoved);
 
         return file;
     }
 
-    private void mergeRestOf(Iterator<Index> iterator, IndicesFile file) throws IOException {
+    /**
+     * Merge without decoding base, runs of untouched base records are transferred from {@code baseFile}
+     * byte-for-byte, and only delta would be encoded.
+     *
+     * @param base the content of {@code baseFile}.
+     */
+    public IndicesFile merge(File baseFile, ByteBuffer base, Iterator<Index> delta) throws IOException {
+        return merge(baseFile, base, delta, new IndicesFile(dir, codec), false);
+    }
+
+    /** @param keepRemoved true means removed entries should be kept to shadow the ones in older runs. */
+    public IndicesFile merge(
+            File baseFile,
+            ByteBuffer base,
+            Iterator<Index> delta,
+            IndicesFile file,
+            boolean keepRemoved
+    ) throws IOException {
+        return merge(baseFile, Segments.of(base), delta, file, keepRemoved);
+    }
+
+    /** @param base the content of {@code baseFile}, which may be larger than 2G. */
+    public IndicesFile merge(
+            File baseFile,
+            final Segments base,
+            final Iterator<Index> delta,
+            final IndicesFile file,
+            final boolean keepRemoved
+    ) throws IOException {
+        checkState(codec instanceof BytesComparable, "Streaming merge need a BytesComparable codec.");
+
+        if (base.capacity() == 0) {
+            mergeRestOf(delta, file, keepRemoved);
+            return file;
+        }
+
+        return FileChannels.read(baseFile, new FileChannels.FileChannelFunction<IndicesFile>() {
+            @Override
+            public IndicesFile apply(FileChannel channel) throws IOException {
+                int length = codec.length();
+                long size = base.capacity() / length;
+                long cursor = 0L;
+
+                while (delta.hasNext()) {
+                    Index index = delta.next();
+                    long i = search(base, cursor, size, index.key());
+                    long end = i < 0 ? -(i + 1) : i;
+
+                    transfer(base, cursor, end, channel, file);
+                    cursor = i < 0 ? end : i + 1; // skip the replaced one
+
+                    if (!index.isRemoved() || keepRemoved) file.append(index);
+                }
+
+                transfer(base, cursor, size, channel, file);
+                return file;
+            }
+        });
+    }
+
+    /**
+     * @param expectedSize of keys would be merged into a new file.
+     *
+     * @return null if bloom filter is disabled.
+     */
+    public BloomFilter newBloomFilter(long expectedSize) {
+        if (bloomFilterFpp <= 0.0) return null;
+        return BloomFilter.create(expectedSize, bloomFilterFpp);
+    }
+
+    /** Transfer records in [from, to) of base, whose keys are hashed in place into the bloom filter of file. */
+    private void transfer(Segments base, long from, long to, FileChannel channel, IndicesFile file) throws IOException {
+        int length = codec.length();
+        BloomFilter filter = file.bloomFilter();
+        if (filter != null) {
+            for (long i = from; i < to; i++) put(filter, base, i * length);
+        }
+        file.transferFrom(channel, from * length, (to - from) * length);
+    }
+
+    private void put(BloomFilter filter, Segments base, long position) {
+        if (!(codec instanceof BytesHashable)) {
+            filter.put(codec.decode(base.slice(position, codec.length())).key());
+            return;
+        }
+        BytesHashable hashable = (BytesHashable) codec;
+        ByteBuffer buffer = base.bufferAt(position);
+        int offset = base.offsetAt(position);
+        filter.put(hashable.highHash(buffer, offset), hashable.lowHash(buffer, offset));
+    }
+
+    /** Gallop from {@code from}, since a delta is usually close to the last one. */
+    private long search(Segments base, long from, long size, Key key) {
+        long bound = 1L;
+        while (from + bound <= size && compare(key, base, from + bound - 1) > 0) bound <<= 1;
+
+        long low = from + (bound >>> 1);
+        long high = Math.min(from + bound, size) - 1;
+
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            int result = compare(key, base, mid);
+            if (result > 0) low = mid + 1;
+            else if (result < 0) high = mid - 1;
+            else return mid;
+        }
+        return -(low + 1);
+    }
+
+    private int compare(Key key, Segments base, long i) {
+        long position = i * codec.length();
+        return ((BytesComparable) codec).compare(key, base.bufferAt(position), base.offsetAt(position));
+    }
+
+    private void mergeRestOf(Iterator<Index> iterator, IndicesFile file, boolean keepRemoved) throws IOException {
         while (iterator.hasNext()) {
             Index c = iterator.next();
-            if (c.isRemoved()) continue;           // remove this entry
+            if (c.isRemoved() && !keepRemoved) continue; // remove this entry
             file.append(c);
         }
     }
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.index;
+
+import com.github.zhongl.io.IterableFile;
+import com.google.common.base.Function;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.PeekingIterator;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static com.google.common.collect.Iterators.peekingIterator;
+
+/**
+ * A difference spills buffered indices as a sorted run to disk once they reach a threshold, and iterates by merging
+ * runs, so that memory is bounded regardless of how many indices are added. Like {@link Difference}, the later added
+ * one of the same key wins.
+ * <p/>
+ * Once there are {@code fanIn} runs of the same level, they are cascaded into one of the next level, and iterating
+ * merges at most {@code fanIn} runs with a heap, so that open files and read buffers are bounded too.
+ * <p/>
+ * It should be closed to delete spilled runs, and to release files of iterators which are not iterated to the end.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@NotThreadSafe
+public class SpillableDifference extends Difference implements Closeable {
+    public static final int THRESHOLD = Integer.getInteger("ipage.spillable.difference.threshold", 1 << 20);
+    public static final int FAN_IN = Integer.getInteger("ipage.spillable.difference.fan.in", 16);
+
+    private final File dir;
+    private final IndexCodec codec;
+    private final int threshold;
+    private final int fanIn;
+    private final List<Run> runs; // from oldest to newest, levels never increase
+    private final List<IterableFile> opened;
+    private final Function<ByteBuffer, Index> decoder;
+
+    private long spilledSize;
+
+    public SpillableDifference(File dir, IndexCodec codec) { this(dir, codec, THRESHOLD); }
+
+    public SpillableDifference(File dir, IndexCodec codec, int threshold) { this(dir, codec, threshold, FAN_IN); }
+
+    public SpillableDifference(File dir, final IndexCodec codec, int threshold, int fanIn) {
+        super(new TreeSet<Index>());
+        this.dir = dir;
+        this.codec = codec;
+        this.threshold = Math.max(1, threshold);
+        this.fanIn = Math.max(2, fanIn);
+        this.runs = new ArrayList<Run>();
+        this.opened = new ArrayList<IterableFile>();
+        this.decoder = new Function<ByteBuffer, Index>() {
+            @Override
+            public Index apply(ByteBuffer byteBuffer) { return codec.decode(byteBuffer); }
+        };
+    }
+
+    @Override
+    public void add(Index index) {
+        super.add(index);
+        if (set.size() >= threshold) spill();
+    }
+
+    /** @return indices in order of key, and its {@code remove} is unsupported. */
+    @Override
+    public Iterator<Index> iterator() {
+        if (runs.isEmpty()) return super.iterator();
+
+        while (runs.size() > fanIn) { // runs of different levels
+            int from = Math.max(runs.size() - fanIn, fanIn - 1);
+            cascade(from, runs.get(from).level);
+        }
+
+        List<PeekingIterator<Index>> iterators = new ArrayList<PeekingIterator<Index>>(runs.size() + 1);
+        for (Run run : runs) iterators.add(open(run.file));
+        iterators.add(peekingIterator(super.iterator()));
+        return merge(iterators);
+    }
+
+    /** @return an upper bound, since a key may be counted more than once in different runs. */
+    @Override
+    public long size() { return spilledSize + set.size(); }
+
+    public int spilledRuns() { return runs.size(); }
+
+    @Override
+    public void close() {
+        for (IterableFile file : opened) file.close();
+        opened.clear();
+        for (Run run : runs) run.file.delete();
+        runs.clear();
+        spilledSize = 0L;
+        set.clear();
+    }
+
+    private void spill() {
+        runs.add(new Run(write(set.iterator()), 0));
+        spilledSize += set.size();
+        set.clear();
+
+        while (runs.size() >= fanIn) {
+            int from = runs.size() - fanIn;
+            int level = runs.get(from).level;
+            if (runs.get(runs.size() - 1).level != level) return; // the last fanIn runs are not of the same level
+            cascade(from, level + 1);
+        }
+    }
+
+    /** Merge runs from {@code from} to the newest into one. */
+    private void cascade(int from, int level) {
+        List<Run> merging = runs.subList(from, runs.size());
+        List<PeekingIterator<Index>> iterators = new ArrayList<PeekingIterator<Index>>(merging.size());
+        int openedBefore = opened.size();
+        for (Run run : merging) iterators.add(open(run.file));
+
+        File file = write(merge(iterators));
+
+        List<IterableFile> files = opened.subList(openedBefore, opened.size());
+        for (IterableFile iterableFile : files) iterableFile.close();
+        files.clear();
+        for (Run run : merging) run.file.delete();
+        merging.clear();
+        runs.add(new Run(file, level));
+    }
+
+    private PeekingIterator<Index> open(File run) {
+        IterableFile file = new IterableFile(run);
+        opened.add(file);
+        return peekingIterator(file.toIterator(decoder));
+    }
+
+    private File write(Iterator<Index> iterator) {
+        try {
+            dir.mkdirs();
+            IndicesFile file = new IndicesFile(codec, new File(dir, System.nanoTime() + ".d"));
+            while (iterator.hasNext()) file.append(iterator.next());
+            return file.toFile();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** K-way merge with a heap, the newest one wins if a key is in more than one iterator. */
+    private static Iterator<Index> merge(List<PeekingIterator<Index>> iteratorsFromOldest) {
+        final PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>(Math.max(1, iteratorsFromOldest.size()));
+        for (int i = 0; i < iteratorsFromOldest.size(); i++) {
+            PeekingIterator<Index> iterator = iteratorsFromOldest.get(i);
+            if (iterator.hasNext()) queue.add(new Cursor(iterator, i));
+        }
+
+        return new AbstractIterator<Index>() {
+            @Override
+            protected Index computeNext() {
+                Cursor newest = queue.poll();
+                if (newest == null) return endOfData();
+
+                Index index = newest.next();
+                if (newest.iterator.hasNext()) queue.add(newest);
+
+                while (!queue.isEmpty() && queue.peek().iterator.peek().compareTo(index) == 0) { // shadowed ones
+                    Cursor older = queue.poll();
+                    older.next();
+                    if (older.iterator.hasNext()) queue.add(older);
+                }
+                return index;
+            }
+        };
+    }
+
+    private static class Run {
+        private final File file;
+        private final int level;
+
+        private Run(File file, int level) {
+            this.file = file;
+            this.level = level;
+        }
+    }
+
+    /** Ordered by the next index, and then the newer one first. */
+    private static class Cursor implements Comparable<Cursor> {
+        private final PeekingIterator<Index> iterator;
+        private final int age;
+
+        private Cursor(PeekingIterator<Index> iterator, int age) {
+            this.iterator = iterator;
+            this.age = age;
+        }
+
+        private Index next() { return iterator.next(); }
+
+        @Override
+        public int compareTo(Cursor that) {
+            int result = iterator.peek().compareTo(that.iterator.peek());
+            if (result != 0) return result;
+            return that.age < age ? -1 : (that.age == age ? 0 : 1);
+        }
+    }
+}
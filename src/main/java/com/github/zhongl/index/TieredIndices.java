@@ -0,0 +1,316 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.index;
+
+
+import com.github.zhongl.io.Throttle;
+import com.google.common.collect.PeekingIterator;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.Iterators.peekingIterator;
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * Sorted index runs from newest to oldest, a flush only writes its difference as a new run, and a background
+ * compaction merges a run into the older one once it grows up to {@code 1 / fanout} of that.
+ * <p/>
+ * Removed entries are kept in runs to shadow older ones, and dropped when they are merged into the oldest run.
+ * <p/>
+ * A fanout less than 2 means there is always only one run, which is fully rewritten by each merge.
+ * <p/>
+ * Runs replaced are closed, so a read retries if runs have been changed during it, which may see a closed one.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@ThreadSafe
+public class TieredIndices {
+    public static final int FANOUT = Integer.getInteger("ipage.tiered.indices.fanout", 0);
+    private static final long CLOSE_TIMEOUT_SECONDS = Long.getLong("ipage.tiered.indices.close.timeout.seconds", 10L);
+
+    private final Logger logger;
+    private final File dir;
+    private final IndexCodec codec;
+    private final Merger merger;
+    private final int fanout;
+    private final ExecutorService compactor;
+
+    @GuardedBy("this")
+    private final Set<String> compacting;
+
+    private volatile List<Indices> runs;
+
+    public TieredIndices(File dir, List<Indices> runs, IndexCodec codec) { this(dir, runs, codec, FANOUT); }
+
+    public TieredIndices(File dir, List<Indices> runs, IndexCodec codec, int fanout) {
+        this(dir, runs, codec, fanout, newCompactor());
+    }
+
+    /** @param compactor runs compactions, which would be shut down by {@link #close()}. */
+    TieredIndices(File dir, List<Indices> runs, IndexCodec codec, int fanout, ExecutorService compactor) {
+        checkArgument(!runs.isEmpty(), "At least one run.");
+        this.logger = Logger.getLogger(getClass().getName());
+        this.dir = dir;
+        this.codec = codec;
+        this.merger = new Merger(dir, codec);
+        this.fanout = fanout;
+        this.runs = unmodifiableList(new ArrayList<Indices>(runs));
+        this.compacting = new HashSet<String>();
+        this.compactor = compactor;
+    }
+
+    public Index get(Key key) {
+        while (true) {
+            List<Indices> list = runs;
+            Index index = get(list, key);
+            if (list == runs) return index;
+        }
+    }
+
+    /**
+     * @param sortedKeys in ascending order.
+     *
+     * @return indices aligned with keys, null means not found or removed.
+     */
+    public Index[] get(List<Key> sortedKeys) {
+        while (true) {
+            List<Indices> list = runs;
+            Index[] indices = get(list, sortedKeys);
+            if (list == runs) return indices;
+        }
+    }
+
+    /** Merge difference of a flush. */
+    public void merge(Difference difference) throws IOException {
+        if (fanout < 2) {
+            List<Indices> list = runs;
+            if (list.size() > 1) list = collapse(list);
+            list.get(0).merge(difference);
+            return;
+        }
+
+        Indices run = newRun(difference, true, null);
+        synchronized (this) {
+            List<Indices> list = new ArrayList<Indices>(runs.size() + 1);
+            list.add(run);
+            list.addAll(runs);
+            runs = unmodifiableList(list);
+        }
+        if (compactor.isShutdown()) return;
+        compactor.execute(new Runnable() {
+            @Override
+            public void run() { compact(); }
+        });
+    }
+
+    /**
+     * Stop compacting, and wait for the running one, so that nothing would be written after closed. Runs would be
+     * closed then.
+     */
+    public void close() {
+        compactor.shutdownNow();
+        try {
+            compactor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        close(runs);
+    }
+
+    /** Replace all runs with the difference, which should contain all alive entries, such as the one of defrag. */
+    public void replace(Difference difference) throws IOException {
+        Indices run = newRun(difference, false, null); // in merging, never throttled
+        List<Indices> replaced;
+        synchronized (this) {
+            replaced = runs;
+            runs = Collections.singletonList(run);
+        }
+        close(replaced);
+    }
+
+    /**
+     * @return an estimation, since an updated key would be counted more than once in different runs, and it would be
+     *         {@link Integer#MAX_VALUE} if there are more.
+     */
+    public int aliveSize() {
+        List<Indices> list = runs;
+        long size = list.get(list.size() - 1).size();
+        for (int i = 0; i < list.size() - 1; i++) size += list.get(i).size() - 2 * list.get(i).removedSize();
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0L, size));
+    }
+
+    public long diskOccupiedBytes() {
+        long bytes = 0L;
+        for (Indices run : runs) bytes += run.diskOccupiedBytes();
+        return bytes;
+    }
+
+    /**
+     * @param inUse would be added names of files of runs and being compacted, which should not be cleaned up.
+     *
+     * @return runs from newest to oldest.
+     */
+    public synchronized List<Indices> runs(Collection<String> inUse) {
+        for (Indices run : runs) {
+            inUse.add(run.fileName());
+            if (run.bloomFilterFileName() != null) inUse.add(run.bloomFilterFileName());
+        }
+        inUse.addAll(compacting);
+        return runs;
+    }
+
+    public int runCount() { return runs.size(); }
+
+    private static Index get(List<Indices> list, Key key) {
+        for (Indices run : list) {
+            Index index = run.get(key);
+            if (index != null) return index.isRemoved() ? null : index;
+        }
+        return null;
+    }
+
+    private static Index[] get(List<Indices> list, List<Key> sortedKeys) {
+        Index[] indices = new Index[sortedKeys.size()];
+        List<Key> rest = sortedKeys;
+        int[] positions = new int[indices.length];
+        for (int i = 0; i < positions.length; i++) positions[i] = i;
+
+        for (Indices run : list) {
+            if (rest.isEmpty()) break;
+            Index[] found = run.get(rest);
+
+            List<Key> nextRest = new ArrayList<Key>(rest.size());
+            int[] nextPositions = new int[rest.size()];
+            for (int i = 0; i < found.length; i++) {
+                if (found[i] != null) {
+                    indices[positions[i]] = found[i];
+                } else {
+                    nextPositions[nextRest.size()] = positions[i];
+                    nextRest.add(rest.get(i));
+                }
+            }
+            rest = nextRest;
+            positions = nextPositions;
+        }
+
+        for (int i = 0; i < indices.length; i++) if (indices[i] != null && indices[i].isRemoved()) indices[i] = null;
+        return indices;
+    }
+
+    private void compact() {
+        while (true) {
+            if (Thread.currentThread().isInterrupted()) return; // closed
+            List<Indices> list = runs;
+            int i = pick(list);
+            if (i < 0) return;
+
+            Indices newer = list.get(i);
+            Indices older = list.get(i + 1);
+            boolean oldest = i + 2 == list.size();
+
+            File file = newFile();
+            synchronized (this) {
+                compacting.add(file.getName());
+                compacting.add(BloomFilter.fileOf(file).getName());
+            }
+
+            try {
+                Indices merged = older.merge(newer.iterator(), newer.size(), file, !oldest, Throttle.MAINTENANCE);
+                if (!oldest) merged.removedSize(); // scan here rather than in flushing.
+                swap(newer, older, merged);
+            } catch (Throwable t) {
+                logger.log(Level.WARNING, "Compaction failed because ", t);
+                return;
+            } finally {
+                synchronized (this) {
+                    compacting.remove(file.getName());
+                    compacting.remove(BloomFilter.fileOf(file).getName());
+                }
+            }
+        }
+    }
+
+    private int pick(List<Indices> list) {
+        for (int i = list.size() - 2; i >= 0; i--) {
+            if (list.get(i).size() * fanout >= list.get(i + 1).size()) return i;
+        }
+        return -1;
+    }
+
+    private synchronized void swap(Indices newer, Indices older, Indices merged) {
+        List<Indices> list = new ArrayList<Indices>(runs);
+        int i = list.indexOf(newer);
+        if (i < 0 || i + 1 >= list.size() || list.get(i + 1) != older) { // replaced during compacting.
+            merged.close();
+            return;
+        }
+        list.set(i, merged);
+        list.remove(i + 1);
+        runs = unmodifiableList(list);
+        newer.close();
+        older.close();
+    }
+
+    private List<Indices> collapse(List<Indices> list) throws IOException {
+        Indices merged = list.get(list.size() - 1);
+        for (int i = list.size() - 2; i >= 0; i--) {
+            Indices intermediate = merged;
+            merged = merged.merge(list.get(i).iterator(), list.get(i).size(), newFile(), false, null);
+            if (intermediate != list.get(list.size() - 1)) intermediate.close();
+        }
+        List<Indices> collapsed = Collections.singletonList(merged);
+        synchronized (this) {
+            runs = collapsed;
+        }
+        close(list);
+        return collapsed;
+    }
+
+    private static void close(List<Indices> list) {
+        for (Indices run : list) run.close();
+    }
+
+    private Indices newRun(Difference difference, boolean keepRemoved, Throttle throttle) throws IOException {
+        PeekingIterator<Index> empty = peekingIterator(Collections.<Index>emptyList().iterator());
+        IndicesFile indicesFile = new IndicesFile(codec, newFile(), throttle, merger.newBloomFilter(difference.size()));
+        File file = merger.merge(empty, peekingIterator(difference.iterator()), indicesFile, keepRemoved).toFile();
+        return new Indices(file, codec, indicesFile.bloomFilter());
+    }
+
+    private File newFile() { return new File(dir, System.nanoTime() + ".i"); }
+
+    private static ExecutorService newCompactor() {
+        return new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "indices-compactor");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.index;
+
+/**
+ * A {@link Key} implemented this has a 128 bits hash, which a bloom filter probes by instead of {@link #hashCode()},
+ * so that keys with equal hash codes could be told apart in a filter of billions of keys.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+public interface WideHashable {
+
+    /** @return the high 64 bits of hash, which should be uniformly distributed. */
+    long highHash();
+
+    /** @return the low 64 bits of hash, which should be uniformly distributed. */
+    long lowHash();
+}
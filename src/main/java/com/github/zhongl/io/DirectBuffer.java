@@ -21,91 +21,188 @@ import com.google.common.base.Function;
 import com.google.common.io.Closeables;
 import com.google.common.io.Files;
 
-import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 import static java.nio.channels.FileChannel.MapMode.PRIVATE;
 
-/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+/**
+ * A loaded file is an immutable mapping, which is swapped by reference on reloading, so readers never take a lock.
+ * <p/>
+ * A mapping is reference counted by readers and this, the old one would be unmapped once the last reader finishes.
+ * <p/>
+ * A file larger than {@code maxSegmentBytes} is mapped into {@link Segments} aligned to its record length.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
 @ThreadSafe
 public class DirectBuffer {
+    public static final int MAX_SEGMENT_BYTES = Integer.getInteger("ipage.direct.buffer.max.segment.bytes", Integer.MAX_VALUE);
 
-    private final ReentrantReadWriteLock lock;
+    private static final long RETRY_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(1L);
 
-    @GuardedBy("lock")
-    private ByteBuffer byteBuffer;
+    private final int maxSegmentBytes;
 
-    @GuardedBy("lock")
-    private File file;
+    private volatile Mapping mapping;
 
-    public DirectBuffer() { lock = new ReentrantReadWriteLock(); }
+    public DirectBuffer() { this(MAX_SEGMENT_BYTES); }
 
-    public <T> T read(Function<ByteBuffer, T> function) {
-        checkState(byteBuffer != null, "DirectBuffer have not loaded.");
-        lock.readLock().lock();
-        try {
-            return function.apply(byteBuffer.asReadOnlyBuffer());
-        } finally {
-            lock.readLock().unlock();
+    public DirectBuffer(int maxSegmentBytes) {
+        checkArgument(maxSegmentBytes > 0, "Positive max segment bytes.");
+        this.maxSegmentBytes = maxSegmentBytes;
+    }
+
+    /** Read a buffer no more than one segment, otherwise use {@link #readSegments(Function)} instead. */
+    public <T> T read(final Function<ByteBuffer, T> function) {
+        return readSegments(new Function<Segments, T>() {
+            @Override
+            public T apply(Segments segments) {
+                checkState(segments.segmentCount() == 1, "Segmented buffer should be read by segments.");
+                return function.apply(segments.bufferAt(0L));
+            }
+        });
+    }
+
+    public <T> T readSegments(Function<Segments, T> function) {
+        while (true) {
+            Mapping current = mapping;
+            checkState(current != null, "DirectBuffer have not loaded.");
+            if (!current.retain()) { // swapped and released, retry the new one.
+                if (current == mapping) LockSupport.parkNanos(RETRY_BACKOFF_NANOS);
+                continue;
+            }
+            try {
+                return function.apply(current.segments());
+            } finally {
+                current.release();
+            }
         }
     }
 
-    public DirectBuffer loadFrom(File file) throws IOException {
+    public DirectBuffer loadFrom(File file) throws IOException { return loadFrom(file, 1); }
+
+    /** @param alignment is the length of a record, which never spans two segments. */
+    public synchronized DirectBuffer loadFrom(File file, int alignment) throws IOException {
         if (file == null || !file.exists()) {
-            byteBuffer = ByteBuffer.allocate(0);
+            swap(new Mapping(ByteBuffer.allocate(0), backendFile()));
             return this;
         }
 
-        if (file.length() > Integer.MAX_VALUE)
-            throw new OutOfMemoryError("Direct buffer can't load from a file length greater than 2G.");
+        if (file.length() <= maxSegmentBytes) {
+            try {
+                swap(new Mapping(Files.map(file, PRIVATE), file));
+                return this;
+            } catch (OutOfMemoryError e) {
+                if (mapping == null || !mapping.canHold(file.length()))
+                    throw new OutOfMemoryError("Try loaded but failed.");
+
+                swap(readFrom(file));
+                return this;
+            }
+        }
 
-        lock.writeLock().lock();
+        checkArgument(alignment > 0 && alignment <= maxSegmentBytes, "Invalid alignment %s", alignment);
+        swap(mapSegmentsFrom(file, maxSegmentBytes / alignment * alignment));
+        return this;
+    }
+
+    /** Unmap the loaded file, any read after this would see an empty buffer. */
+    public synchronized void unload() { swap(new Mapping(ByteBuffer.allocate(0), backendFile())); }
+
+    public File backendFile() {
+        Mapping current = mapping;
+        return current == null ? null : current.file;
+    }
+
+    /** The new one is published before the old one is released, so a reader failed to retain the old sees the new. */
+    private void swap(Mapping loaded) {
+        Mapping old = mapping;
+        mapping = loaded;
+        if (old != null) old.release();
+    }
+
+    private static Mapping mapSegmentsFrom(File file, int segmentBytes) throws IOException {
+        long length = file.length();
+        ByteBuffer[] buffers = new ByteBuffer[(int) ((length + segmentBytes - 1) / segmentBytes)];
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw"); // private mode need read and write
         try {
-            return mapFrom(file);
+            FileChannel channel = randomAccessFile.getChannel();
+            for (int i = 0; i < buffers.length; i++) {
+                long position = (long) i * segmentBytes;
+                buffers[i] = channel.map(PRIVATE, position, Math.min(segmentBytes, length - position));
+            }
+            return new Mapping(buffers, segmentBytes, file);
         } catch (OutOfMemoryError e) {
-            if (file.length() > byteBuffer.capacity())
-                throw new OutOfMemoryError("Try loaded but failed.");
-
-            return readFrom(file);
+            for (ByteBuffer buffer : buffers) DirectByteBufferCleaner.clean(buffer);
+            throw e;
         } finally {
-            this.file = file;
-            lock.writeLock().unlock();
+            Closeables.closeQuietly(randomAccessFile);
         }
     }
 
-    public File backendFile() {
-        lock.readLock().lock();
+    /**
+     * Read the file into heap if it can't be mapped, which is no larger than the current mapping, that would be
+     * unmapped after swapped. Readers of the current one go on without waiting.
+     */
+    private static Mapping readFrom(File file) throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.allocate((int) file.length());
+        FileInputStream stream = new FileInputStream(file);
         try {
-            return file;
+            FileChannel channel = stream.getChannel();
+            while (byteBuffer.hasRemaining() && channel.read(byteBuffer) >= 0) ;
+            byteBuffer.flip();
+            return new Mapping(byteBuffer, file);
         } finally {
-            lock.readLock().unlock();
+            Closeables.closeQuietly(stream);
         }
     }
 
-    private DirectBuffer mapFrom(File file) throws IOException {
-        ByteBuffer toClean = byteBuffer;
-        byteBuffer = Files.map(file, PRIVATE);
-        DirectByteBufferCleaner.clean(toClean);
-        return this;
-    }
+    private static class Mapping {
+        private final ByteBuffer[] buffers;
+        private final int segmentBytes;
+        private final File file;
+        private final AtomicInteger references = new AtomicInteger(1); // held by the DirectBuffer
 
-    private DirectBuffer readFrom(File file) throws IOException {
-        FileInputStream stream = new FileInputStream(file);
+        Mapping(ByteBuffer byteBuffer, File file) {
+            this(new ByteBuffer[] {byteBuffer}, Math.max(1, byteBuffer.capacity()), file);
+        }
 
-        try {
-            byteBuffer.clear();
-            stream.getChannel().read(byteBuffer);
-            byteBuffer.flip();
+        Mapping(ByteBuffer[] buffers, int segmentBytes, File file) {
+            this.buffers = buffers;
+            this.segmentBytes = segmentBytes;
+            this.file = file;
+        }
 
-            return this;
-        } finally {
-            Closeables.closeQuietly(stream);
+        /** @return read only views, since a reader may change position and limit. */
+        Segments segments() {
+            ByteBuffer[] views = new ByteBuffer[buffers.length];
+            for (int i = 0; i < views.length; i++) views[i] = buffers[i].asReadOnlyBuffer();
+            return new Segments(views, segmentBytes);
+        }
+
+        boolean canHold(long length) { return buffers.length == 1 && length <= buffers[0].capacity(); }
+
+        /** @return false if it has been released. */
+        boolean retain() {
+            while (true) {
+                int count = references.get();
+                if (count == 0) return false;
+                if (references.compareAndSet(count, count + 1)) return true;
+            }
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) for (ByteBuffer buffer : buffers) DirectByteBufferCleaner.clean(buffer);
         }
     }
 }
@@ -35,14 +35,23 @@ import static com.google.common.base.Preconditions.checkState;
 @NotThreadSafe
 public class FileAppender {
     private static final int BATCH_KB = Integer.getInteger("ipage.file.appender.batch.kb", 1024) * 1024;// 1M
+    private static final int THROTTLE_CHUNK = Integer.getInteger("ipage.file.appender.throttle.chunk.kb", 256) * 1024;
+
+    /** A buffer longer than it can't be appended by {@link #append(ByteBuffer)}. */
+    public static final int MAX_APPEND_BYTES = BATCH_KB;
 
     private final ByteBuffer batchBuffer;
     private final File file;
     private final FileOutputStream fileOutputStream;
+    private final Throttle throttle;
 
     /** An {@link OutOfMemoryError} should be handled. */
-    public FileAppender(File file) {
+    public FileAppender(File file) { this(file, null); }
+
+    /** @param throttle limits writes and transfers, null means unlimited. */
+    public FileAppender(File file, Throttle throttle) {
         this.file = file;
+        this.throttle = throttle;
         batchBuffer = ByteBuffer.allocateDirect(BATCH_KB);
         try {
             fileOutputStream = new FileOutputStream(file, false);
@@ -72,13 +81,40 @@ public class FileAppender {
     }
 
     public int transferFrom(FileChannel channel, long position, int length) throws IOException {
-        checkState(
-                channel.transferTo(position, length, thisChannel()) == length,
-                "Unexpected transfer length, there may be a bug in FileChannelImpl#transferTo, you should take care of it."
-        );
+        if (batchBuffer.position() > 0) write(); // keep order with appended
+        if (throttle == null) {
+            transfer(channel, position, length);
+            return length;
+        }
+
+        for (int transferred = 0; transferred < length; ) { // in chunks, so that the rate is smooth
+            int chunk = Math.min(THROTTLE_CHUNK, length - transferred);
+            throttle.acquire(chunk);
+            transfer(channel, position + transferred, chunk);
+            transferred += chunk;
+        }
         return length;
     }
 
+    /** Force appended bytes to disk but keep the file open, so that appending can go on. */
+    public void sync() throws IOException {
+        flush();
+        fsync();
+    }
+
+    /** Write batched bytes to the file without forcing them to disk. */
+    public void flush() throws IOException {
+        if (batchBuffer.position() > 0) write();
+    }
+
+    /**
+     * Force flushed bytes to disk, it could be invoked concurrently with appending, since {@link FileChannel} is thread
+     * safe.
+     */
+    public void fsync() throws IOException {
+        thisChannel().force(false);
+    }
+
     public File force() throws IOException {
         if (!thisChannel().isOpen()) return file;
         try {
@@ -91,8 +127,16 @@ public class FileAppender {
         }
     }
 
+    private void transfer(FileChannel channel, long position, int length) throws IOException {
+        checkState(
+                channel.transferTo(position, length, thisChannel()) == length,
+                "Unexpected transfer length, there may be a bug in FileChannelImpl#transferTo, you should take care of it."
+        );
+    }
+
     private void write() throws IOException {
         batchBuffer.flip();
+        if (throttle != null) throttle.acquire(batchBuffer.remaining());
         while (batchBuffer.hasRemaining()) thisChannel().write(batchBuffer);
         batchBuffer.clear();
     }
@@ -22,6 +22,7 @@ import com.google.common.collect.AbstractIterator;
 import com.google.common.io.Closeables;
 
 import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -33,7 +34,7 @@ import java.util.Iterator;
 
 /** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
 @ThreadSafe
-public class IterableFile {
+public class IterableFile implements Closeable {
     protected static final int BUFFER_SIZE = Integer.getInteger("ipage.iterable.file.buffer.size", 1024) * 1024; // 1M
 
     protected final FileInputStream stream;
@@ -81,6 +82,10 @@ public class IterableFile {
         };
     }
 
+    /** Close the file before iterated to the end, it is unnecessary otherwise. */
+    @Override
+    public void close() { Closeables.closeQuietly(stream); }
+
     private boolean isNotOutOfBound(RuntimeException e) {
         return !(e instanceof BufferUnderflowException || e instanceof IllegalArgumentException);
     }
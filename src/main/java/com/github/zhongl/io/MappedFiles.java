@@ -0,0 +1,109 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.io;
+
+import com.google.common.base.Function;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Sealed files are mapped once by {@link DirectBuffer} at the first read, and decoded from the mapping directly
+ * without any system call after that.
+ * <p/>
+ * File greater than 2G can't be mapped, it would be read by {@link ReadOnlyChannels} instead.
+ * <p/>
+ * A mapping closed during a read is unmapped after the readers of it finish, but a read which got the buffer just
+ * before closing would see it empty, and then read from the file once by {@link FileChannels}.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@ThreadSafe
+public class MappedFiles implements ReadOnlyFiles {
+
+    private final ConcurrentMap<File, DirectBuffer> buffers;
+    private final Set<File> oversizeFiles;
+    private final ReadOnlyChannels oversizes;
+
+    public MappedFiles() {
+        buffers = new ConcurrentHashMap<File, DirectBuffer>();
+        oversizeFiles = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+        oversizes = new ReadOnlyChannels();
+    }
+
+    @Override
+    public <T> T read(File file, final long position, final int length, final Function<ByteBuffer, T> function)
+            throws IOException {
+        DirectBuffer buffer = bufferOf(file);
+        if (buffer == null) return oversizes.read(file, position, length, function);
+
+        final boolean[] unloaded = {false};
+        T value = buffer.read(new Function<ByteBuffer, T>() {
+            @Override
+            public T apply(ByteBuffer byteBuffer) {
+                if (byteBuffer.capacity() < position + length) { // closed concurrently
+                    unloaded[0] = true;
+                    return null;
+                }
+                byteBuffer.limit((int) position + length).position((int) position);
+                return function.apply(byteBuffer.slice());
+            }
+        });
+        if (!unloaded[0]) return value;
+        return FileChannels.read(file, position, length, function);
+    }
+
+    @Override
+    public void close(File file) {
+        DirectBuffer buffer = buffers.remove(file);
+        if (buffer != null) buffer.unload();
+        oversizeFiles.remove(file);
+        oversizes.close(file);
+    }
+
+    @Override
+    public void closeAll() {
+        for (File file : new ArrayList<File>(buffers.keySet())) close(file);
+        oversizeFiles.clear();
+        oversizes.closeAll();
+    }
+
+    /** @return null if the file is too large to be mapped. */
+    private DirectBuffer bufferOf(File file) throws IOException {
+        DirectBuffer buffer = buffers.get(file);
+        if (buffer != null || oversizeFiles.contains(file)) return buffer;
+
+        synchronized (this) {
+            buffer = buffers.get(file);
+            if (buffer != null || oversizeFiles.contains(file)) return buffer;
+            if (file.length() > Integer.MAX_VALUE) {
+                oversizeFiles.add(file);
+                return null;
+            }
+            buffer = new DirectBuffer(Integer.MAX_VALUE).loadFrom(file);
+            buffers.put(file, buffer);
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.io;
+
+import com.google.common.base.Function;
+import com.google.common.io.Closeables;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Long-lived read only {@link FileChannel}s, at most {@code capacity} of them are kept open and the least recently
+ * used one would be closed once over the budget.
+ * <p/>
+ * A read is a positional read on a shared channel, which never changes the position of the channel, so that no
+ * open or close is needed for each one.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@ThreadSafe
+public class ReadOnlyChannels implements ReadOnlyFiles {
+    public static final int CAPACITY = Integer.getInteger("ipage.read.only.channels.capacity", 256);
+    public static final int MAX_RETRIES = Integer.getInteger("ipage.read.only.channels.max.retries", 3);
+
+    private final int capacity;
+
+    @GuardedBy("this")
+    private final Map<File, FileChannel> channels;
+
+    public ReadOnlyChannels() { this(CAPACITY); }
+
+    public ReadOnlyChannels(int capacity) {
+        checkArgument(capacity > 0);
+        this.capacity = capacity;
+        this.channels = new LinkedHashMap<File, FileChannel>(16, 0.75f, true);
+    }
+
+    @Override
+    public <T> T read(File file, long position, int length, Function<ByteBuffer, T> function) throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(length);
+        for (int retries = 0; ; retries++) {
+            FileChannel channel = channelOf(file);
+            try {
+                read(channel, position, byteBuffer);
+                return function.apply(byteBuffer);
+            } catch (ClosedByInterruptException e) {
+                discard(file, channel); // closed by this interrupted thread, so that others would reopen it.
+                throw e;
+            } catch (ClosedChannelException e) { // including AsynchronousCloseException by eviction or interruption.
+                discard(file, channel);
+                if (retries >= MAX_RETRIES) throw e;
+                byteBuffer.clear();
+            }
+        }
+    }
+
+    @Override
+    public void close(File file) {
+        FileChannel channel;
+        synchronized (this) {
+            channel = channels.remove(file);
+        }
+        Closeables.closeQuietly(channel);
+    }
+
+    @Override
+    public void closeAll() {
+        ArrayList<FileChannel> list;
+        synchronized (this) {
+            list = new ArrayList<FileChannel>(channels.values());
+            channels.clear();
+        }
+        for (FileChannel channel : list) Closeables.closeQuietly(channel);
+    }
+
+    public synchronized int size() { return channels.size(); }
+
+    /** Remove the closed channel only if it is still the mapped one, since another may have been reopened. */
+    private synchronized void discard(File file, FileChannel channel) {
+        if (channels.get(file) == channel) channels.remove(file);
+    }
+
+    private static void read(FileChannel channel, long position, ByteBuffer byteBuffer) throws IOException {
+        while (byteBuffer.hasRemaining()) {
+            int read = channel.read(byteBuffer, position + byteBuffer.position());
+            if (read == -1) break;
+        }
+        byteBuffer.flip();
+    }
+
+    private FileChannel channelOf(File file) throws IOException {
+        FileChannel evicted = null;
+        FileChannel channel;
+        synchronized (this) {
+            channel = channels.get(file);
+            if (channel != null) return channel;
+
+            channel = new FileInputStream(file).getChannel();
+            channels.put(file, channel);
+
+            if (channels.size() > capacity) {
+                Iterator<FileChannel> iterator = channels.values().iterator();
+                evicted = iterator.next();
+                iterator.remove();
+            }
+        }
+        Closeables.closeQuietly(evicted);
+        return channel;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.io;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.nio.ByteBuffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Buffers of a file addressed by long position, each one except the last is {@code segmentBytes} long, which is a
+ * multiple of record length, so that a record never spans two segments.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@NotThreadSafe
+public class Segments {
+    private final ByteBuffer[] buffers;
+    private final int segmentBytes;
+    private final long capacity;
+
+    public Segments(ByteBuffer[] buffers, int segmentBytes) {
+        checkArgument(buffers.length > 0, "At least one segment.");
+        checkArgument(segmentBytes > 0, "Positive segment bytes.");
+        this.buffers = buffers;
+        this.segmentBytes = segmentBytes;
+        this.capacity = (long) segmentBytes * (buffers.length - 1) + buffers[buffers.length - 1].capacity();
+    }
+
+    /** A single segment view of the buffer. */
+    public static Segments of(ByteBuffer buffer) {
+        return new Segments(new ByteBuffer[] {buffer}, Math.max(1, buffer.capacity()));
+    }
+
+    public long capacity() { return capacity; }
+
+    /** @return the segment contains {@code position}, which should be accessed at {@link #offsetAt(long)}. */
+    public ByteBuffer bufferAt(long position) { return buffers[((int) (position / segmentBytes))]; }
+
+    public int offsetAt(long position) { return (int) (position % segmentBytes); }
+
+    /** @return a buffer of the record at {@code position}, which could be modified freely. */
+    public ByteBuffer slice(long position, int length) {
+        ByteBuffer duplicate = bufferAt(position).duplicate();
+        int offset = offsetAt(position);
+        duplicate.limit(offset + length).position(offset);
+        return duplicate;
+    }
+
+    public int segmentCount() { return buffers.length; }
+}
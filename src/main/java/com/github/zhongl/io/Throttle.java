@@ -0,0 +1,81 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.io;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket limits bytes per second, acquirers would go into debt and sleep for it, so a large acquiring never
+ * starves the others. The burst is at most one second of rate.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@ThreadSafe
+public class Throttle {
+
+    /** Shared by writes of background maintenance, such as defrag and index compaction, 0 means unlimited. */
+    public static final Throttle MAINTENANCE = new Throttle(Long.getLong("ipage.throttle.maintenance.bytes.per.second", 0L));
+
+    private volatile long bytesPerSecond;
+
+    @GuardedBy("this")
+    private double tokens;
+    @GuardedBy("this")
+    private long lastNanos;
+
+    public Throttle(long bytesPerSecond) {
+        setBytesPerSecond(bytesPerSecond);
+    }
+
+    public void acquire(long bytes) {
+        long rate = bytesPerSecond;
+        if (rate <= 0 || bytes <= 0) return;
+
+        long waitNanos;
+        synchronized (this) {
+            refill(rate);
+            tokens -= bytes;
+            waitNanos = tokens < 0 ? (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / rate) : 0L;
+        }
+
+        if (waitNanos == 0L) return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public long getBytesPerSecond() { return bytesPerSecond; }
+
+    /** @param bytesPerSecond 0 or negative means unlimited. */
+    public synchronized void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = Math.max(0L, bytesPerSecond);
+        tokens = Math.min(tokens, this.bytesPerSecond);
+        lastNanos = System.nanoTime();
+    }
+
+    @GuardedBy("this")
+    private void refill(long rate) {
+        long now = System.nanoTime();
+        tokens = Math.min(rate, tokens + (now - lastNanos) * 1.0 * rate / TimeUnit.SECONDS.toNanos(1));
+        lastNanos = now;
+    }
+}
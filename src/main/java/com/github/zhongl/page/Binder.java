@@ -18,14 +18,19 @@ package com.github.zhongl.page;
 
 import com.github.zhongl.codec.Codec;
 import com.github.zhongl.io.FileAppender;
+import com.github.zhongl.io.ReadOnlyChannels;
+import com.github.zhongl.io.ReadOnlyFiles;
+import com.github.zhongl.io.Throttle;
 import com.google.common.base.Function;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Iterables;
 
+import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static java.util.Collections.unmodifiableList;
@@ -33,54 +38,231 @@ import static java.util.Collections.unmodifiableList;
 /** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
 @ThreadSafe
 public class Binder<V> implements Iterable<Element<V>> {
+    public static final int DEFRAG_PARALLELISM = Integer.getInteger("ipage.binder.defrag.parallelism", 1);
+    public static final int DEFRAG_CHUNK = Integer.getInteger("ipage.binder.defrag.chunk", 1024);
+
     protected static final String SUFFIX = ".p";
     protected final File dir;
     protected final Codec<V> codec;
     protected final AtomicReference<List<Page<V>>> pages;
+    protected final ReadOnlyFiles files;
+    protected final Set<String> writings;
+
+    private volatile long reserved;
+
+    @GuardedBy("this")
+    private ThreadPoolExecutor defragExecutor;
 
     public Binder(final File dir, List<Page<V>> list, final Codec<V> codec) {
+        this(dir, list, codec, new ReadOnlyChannels());
+    }
+
+    public Binder(final File dir, List<Page<V>> list, final Codec<V> codec, ReadOnlyFiles files) {
         this.dir = dir;
         this.codec = codec;
+        this.files = files;
+        this.writings = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
         pages = new AtomicReference<List<Page<V>>>(unmodifiableList(list));
     }
 
-    public V get(Range range) throws IOException { return binarySearch(new Offset(range.from())).get(range); }
+    public V get(Range range) throws IOException { return binarySearch(pages.get(), new Offset(range.from())).get(range); }
+
+    /**
+     * @param sortedRanges in ascending order, which would be read page by page.
+     *
+     * @return values aligned with ranges.
+     */
+    public List<V> get(List<Range> sortedRanges) throws IOException {
+        List<Page<V>> list = pages.get();
+        List<V> values = new ArrayList<V>(sortedRanges.size());
+        for (int from = 0; from < sortedRanges.size(); ) {
+            Page<V> page = binarySearch(list, new Offset(sortedRanges.get(from).from()));
+            long end = page.nextPageNumber().value();
+            int to = from + 1;
+            while (to < sortedRanges.size() && sortedRanges.get(to).from() < end) to++;
+            values.addAll(page.get(sortedRanges.subList(from, to)));
+            from = to;
+        }
+        return values;
+    }
 
     public Binder<V> append(final Collection<V> values, final Function<Element<V>, Void> collector) throws IOException {
         return modifyPages(new Modification<V>() {
 
             @Override
             public List<Page<V>> apply(List<Page<V>> list) throws IOException {
-                long position = endPositionOf(list);
+                long position = appendPositionOf(list);
                 ArrayList<Page<V>> newList = new ArrayList<Page<V>>(list);
-                newList.add(new Page<V>(append(values, collector, position), new Offset(position), codec));
+                newList.add(new Page<V>(append(values, collector, position), new Offset(position), codec, files));
                 return unmodifiableList(newList);
             }
         });
     }
 
     public Binder<V> defrag(final Predicate<Element<V>> filter, final Function<Element<V>, Void> collector) throws IOException {
+        return defrag(filter, collector, DEFRAG_PARALLELISM);
+    }
+
+    /**
+     * @param parallelism greater than 1 means chunks of elements would be filtered concurrently, and elements would
+     *                    still be collected and transferred in order, so {@code filter} should be thread safe.
+     */
+    public Binder<V> defrag(
+            final Predicate<Element<V>> filter,
+            final Function<Element<V>, Void> collector,
+            final int parallelism
+    ) throws IOException {
+        return defrag(filter, collector, parallelism, DEFRAG_CHUNK);
+    }
+
+    Binder<V> defrag(
+            final Predicate<Element<V>> filter,
+            final Function<Element<V>, Void> collector,
+            final int parallelism,
+            final int chunk
+    ) throws IOException {
         return modifyPages(new Modification<V>() {
             @Override
             public List<Page<V>> apply(List<Page<V>> list) throws IOException {
-                long offset = 0;
+                File file = new File(dir, System.nanoTime() + SUFFIX);
+                transfer(list, 0L, file, filter, collector, parallelism, chunk, null);
+                if (file.length() == 0) return Collections.emptyList();
+                return Collections.singletonList(new Page<V>(file, new Offset(0L), codec, files));
+            }
+        });
+    }
+
+    /**
+     * Reserve offsets after the view for its defragment, so that pages appended meanwhile would never overlap it.
+     * It should be called in the thread of appending.
+     *
+     * @return the offset of the defragment page.
+     */
+    public Offset reserve(List<Page<V>> view) {
+        long base = appendPositionOf(view);
+        long bytes = 0L;
+        for (Page<V> page : view) bytes += page.length();
+        reserved = base + bytes;
+        return new Offset(base);
+    }
+
+    /**
+     * Defragment pages of the view without modifying, which could be run in another thread.
+     * The new page would be kept from cleaning up until it is {@link #insert(Page)}ed or {@link #discard(Page)}ed.
+     * Writes are throttled by {@link Throttle#MAINTENANCE}, since it is off the merging thread.
+     *
+     * @param base returned by {@link #reserve(List)}.
+     *
+     * @return page at {@code base} of alive elements, or null if there is none.
+     */
+    public Page<V> defrag(
+            List<Page<V>> view,
+            Offset base,
+            Predicate<Element<V>> filter,
+            Function<Element<V>, Void> collector
+    ) throws IOException {
+        File file = new File(dir, System.nanoTime() + SUFFIX);
+        writings.add(file.getName());
+        try {
+            transfer(view, base.value(), file, filter, collector, DEFRAG_PARALLELISM, DEFRAG_CHUNK, Throttle.MAINTENANCE);
+        } catch (IOException e) {
+            writings.remove(file.getName());
+            throw e;
+        } catch (RuntimeException e) {
+            writings.remove(file.getName());
+            throw e;
+        }
+        Page<V> page = new Page<V>(file, base, codec, files);
+        if (file.length() > 0) return page;
+        discard(page);
+        return null;
+    }
+
+    /** Insert a page in order of offset, which should not overlap the others. */
+    public Binder<V> insert(final Page<V> page) throws IOException {
+        modifyPages(new Modification<V>() {
+            @Override
+            public List<Page<V>> apply(List<Page<V>> list) throws IOException {
+                ArrayList<Page<V>> newList = new ArrayList<Page<V>>(list);
+                int i = Collections.binarySearch(newList, page);
+                newList.add(i < 0 ? -(i + 1) : i, page);
+                return unmodifiableList(newList);
+            }
+        });
+        writings.remove(page.fileName());
+        return this;
+    }
+
+    /** Give up a page returned by {@link #defrag(List, Offset, Predicate, Function)}, so it could be cleaned up. */
+    public void discard(Page<V> page) { writings.remove(page.fileName()); }
+
+    /** @return true if the file is being written by a defragment, which should not be cleaned up. */
+    public boolean isWriting(String fileName) { return writings.contains(fileName); }
+
+    public List<Page<V>> pages() { return pages.get(); }
+
+    /** Account the range as dead in its page, which should be called before the range was shadowed. */
+    public void markDead(Range range) {
+        List<Page<V>> list = pages.get();
+        if (list.isEmpty()) return;
+        binarySearch(list, new Offset(range.from())).markDead(range.length());
+    }
+
+    /**
+     * Transfer alive elements of pages whose garbage ratio is not less than {@code garbageRatio} into a new page
+     * at the end, the other pages would be untouched.
+     * <p/>
+     * Relocated pages are still kept for reading until {@link #drop(Collection)}, so that indices of relocated
+     * elements could be updated in between.
+     *
+     * @return pages relocated.
+     */
+    public List<Page<V>> relocate(
+            final double garbageRatio,
+            final Predicate<Element<V>> filter,
+            final Function<Element<V>, Void> collector
+    ) throws IOException {
+        final List<Page<V>> relocated = new ArrayList<Page<V>>();
+        modifyPages(new Modification<V>() {
+            @Override
+            public List<Page<V>> apply(List<Page<V>> list) throws IOException {
+                relocated.clear();
+                for (Page<V> page : list) if (page.garbageRatio() >= garbageRatio) relocated.add(page);
+                if (relocated.isEmpty()) return list;
+
+                long offset = appendPositionOf(list);
+                long position = offset;
                 FileAppender fileAppender = new FileAppender(new File(dir, System.nanoTime() + SUFFIX));
-                for (Page<V> page : list) {
+                for (Page<V> page : relocated) {
                     RangeJoiner joiner = new RangeJoiner();
                     for (Element<V> element : page) {
-                        if (filter.apply(element)) {
-                            Range range = element.range();
-                            joiner.join(range);
-                            long length = range.to() - range.from();
-                            collector.apply(new Element<V>(element.value(), new Range(offset, offset + length)));
-                            offset += length;
-                        }
+                        if (!filter.apply(element)) continue;
+                        Range range = element.range();
+                        joiner.join(range);
+                        collector.apply(new Element<V>(element.value(), new Range(position, position + range.length())));
+                        position += range.length();
                     }
                     page.transferTo(fileAppender, joiner);
                 }
+
                 File file = fileAppender.force();
-                if (file.length() == 0) return Collections.emptyList();
-                return Collections.singletonList(new Page<V>(file, new Offset(0L), codec));
+                if (file.length() == 0) return list;
+                ArrayList<Page<V>> newList = new ArrayList<Page<V>>(list);
+                newList.add(new Page<V>(file, new Offset(offset), codec, files));
+                return unmodifiableList(newList);
+            }
+        });
+        return relocated;
+    }
+
+    /** Drop relocated pages, offsets of the others are kept, so there would be a gap instead. */
+    public Binder<V> drop(final Collection<Page<V>> relocated) throws IOException {
+        return modifyPages(new Modification<V>() {
+            @Override
+            public List<Page<V>> apply(List<Page<V>> list) throws IOException {
+                ArrayList<Page<V>> newList = new ArrayList<Page<V>>(list);
+                newList.removeAll(relocated);
+                return unmodifiableList(newList);
             }
         });
     }
@@ -88,7 +270,24 @@ public class Binder<V> implements Iterable<Element<V>> {
     @Override
     public Iterator<Element<V>> iterator() { return Iterables.concat(pages.get()).iterator(); }
 
-    public long diskOccupiedBytes() { return endPositionOf(pages.get()); }
+    /** Stop threads of parallel defragment, a running one would fail. */
+    public synchronized void close() {
+        if (defragExecutor != null) defragExecutor.shutdownNow();
+    }
+
+    public long diskOccupiedBytes() {
+        long bytes = 0L;
+        for (Page<V> page : pages.get()) bytes += page.length();
+        return bytes;
+    }
+
+    public long deadBytes() {
+        long bytes = 0L;
+        for (Page<V> page : pages.get()) bytes += page.deadBytes();
+        return bytes;
+    }
+
+    private long appendPositionOf(List<Page<V>> list) { return Math.max(endPositionOf(list), reserved); }
 
     private long endPositionOf(List<Page<V>> list) {
         return list.isEmpty() ? 0L : list.get(list.size() - 1).nextPageNumber().value();
@@ -97,11 +296,130 @@ public class Binder<V> implements Iterable<Element<V>> {
     private Binder<V> modifyPages(Modification<V> modification) throws IOException {
         while (true) {
             List<Page<V>> list = pages.get();
-            if (pages.compareAndSet(list, unmodifiableList(modification.apply(list)))) break;
+            if (pages.compareAndSet(list, modification.apply(list))) break;
         }
         return this;
     }
 
+    /** @param throttle limits writes, which should be null in merging thread, so that flushing is never slowed down. */
+    private File transfer(
+            List<Page<V>> list,
+            long offset,
+            File file,
+            Predicate<Element<V>> filter,
+            Function<Element<V>, Void> collector,
+            int parallelism,
+            int chunk,
+            Throttle throttle
+    ) throws IOException {
+        FileAppender fileAppender = new FileAppender(file, throttle);
+        if (parallelism > 1) return parallelTransfer(list, offset, fileAppender, filter, collector, parallelism, chunk);
+
+        for (Page<V> page : list) {
+            RangeJoiner joiner = new RangeJoiner();
+            for (Element<V> element : page) {
+                if (filter.apply(element)) {
+                    Range range = element.range();
+                    joiner.join(range);
+                    long length = range.to() - range.from();
+                    collector.apply(new Element<V>(element.value(), new Range(offset, offset + length)));
+                    offset += length;
+                }
+            }
+            page.transferTo(fileAppender, joiner);
+        }
+        return fileAppender.force();
+    }
+
+    /**
+     * Pages are decoded in order and cut into chunks of elements, which are filtered concurrently, since boundaries of
+     * elements are unknown until decoded. At most {@code 2 * parallelism} chunks are held in memory, no matter how
+     * large a page is, and elements would still be collected and transferred in order.
+     */
+    private File parallelTransfer(
+            List<Page<V>> list,
+            long offset,
+            FileAppender fileAppender,
+            Predicate<Element<V>> filter,
+            Function<Element<V>, Void> collector,
+            int parallelism,
+            int chunk
+    ) throws IOException {
+        ExecutorService executor = defragExecutor(parallelism);
+        Queue<Future<Chunk<V>>> window = new LinkedList<Future<Chunk<V>>>();
+        try {
+            for (Page<V> page : list) {
+                Chunk<V> current = new Chunk<V>(page, filter, chunk);
+                for (Element<V> element : page) {
+                    current.elements.add(element);
+                    if (current.elements.size() < chunk) continue;
+                    if (window.size() >= 2 * parallelism)
+                        offset = stitch(getUnchecked(window.poll()), offset, fileAppender, collector);
+                    window.add(executor.submit(current));
+                    current = new Chunk<V>(page, filter, chunk);
+                }
+                if (current.elements.isEmpty()) continue;
+                if (window.size() >= 2 * parallelism)
+                    offset = stitch(getUnchecked(window.poll()), offset, fileAppender, collector);
+                window.add(executor.submit(current));
+            }
+
+            while (!window.isEmpty()) offset = stitch(getUnchecked(window.poll()), offset, fileAppender, collector);
+            return fileAppender.force();
+        } finally {
+            for (Future<Chunk<V>> future : window) future.cancel(true); // left by a failure
+        }
+    }
+
+    /**
+     * Threads are shared by defragments and grown to the largest parallelism requested, and idle ones would time out,
+     * so that a binder rarely defragmented holds no thread.
+     */
+    private synchronized ExecutorService defragExecutor(int parallelism) {
+        if (defragExecutor == null) {
+            defragExecutor = new ThreadPoolExecutor(parallelism, parallelism, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "binder-defrag");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            defragExecutor.allowCoreThreadTimeOut(true);
+        } else if (parallelism > defragExecutor.getMaximumPoolSize()) {
+            defragExecutor.setMaximumPoolSize(parallelism);
+            defragExecutor.setCorePoolSize(parallelism);
+        }
+        return defragExecutor;
+    }
+
+    /** @return offset after alive elements of the chunk. */
+    private long stitch(Chunk<V> chunk, long offset, FileAppender fileAppender, Function<Element<V>, Void> collector) {
+        for (Element<V> element : chunk.elements) {
+            long length = element.range().length();
+            collector.apply(new Element<V>(element.value(), new Range(offset, offset + length)));
+            offset += length;
+        }
+        chunk.page.transferTo(fileAppender, chunk.joiner);
+        return offset;
+    }
+
+    private static <T> T getUnchecked(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
     private File append(Iterable<V> values, Function<Element<V>, Void> collector, long offset) throws IOException {
         FileAppender fileAppender = new FileAppender(new File(dir, System.nanoTime() + SUFFIX));
         for (V value : values) offset += append(value, fileAppender, collector, offset);
@@ -114,10 +432,10 @@ public class Binder<V> implements Iterable<Element<V>> {
         return appended;
     }
 
-    private Page<V> binarySearch(Offset offset) {
-        int i = Collections.binarySearch(pages.get(), new Numbered<Offset>(offset) {});
+    private Page<V> binarySearch(List<Page<V>> list, Offset offset) {
+        int i = Collections.binarySearch(list, new Numbered<Offset>(offset) {});
         i = i < 0 ? -(i + 2) : i; // round index
-        return pages.get().get(i);
+        return list.get(i);
     }
 
     public void foreachPage(Function<Page<V>, Void> function) {
@@ -127,4 +445,30 @@ public class Binder<V> implements Iterable<Element<V>> {
     private interface Modification<V> {
         List<Page<V>> apply(List<Page<V>> list) throws IOException;
     }
+
+    /** Consecutive elements of a page, only alive ones and their ranges are kept after called. */
+    private static class Chunk<V> implements Callable<Chunk<V>> {
+        private final Page<V> page;
+        private final Predicate<Element<V>> filter;
+        private final RangeJoiner joiner = new RangeJoiner();
+        private List<Element<V>> elements;
+
+        Chunk(Page<V> page, Predicate<Element<V>> filter, int size) {
+            this.page = page;
+            this.filter = filter;
+            this.elements = new ArrayList<Element<V>>(size);
+        }
+
+        @Override
+        public Chunk<V> call() throws Exception {
+            List<Element<V>> alive = new ArrayList<Element<V>>();
+            for (Element<V> element : elements) {
+                if (!filter.apply(element)) continue;
+                joiner.join(element.range());
+                alive.add(element);
+            }
+            elements = alive;
+            return this;
+        }
+    }
 }
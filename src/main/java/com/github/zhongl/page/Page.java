@@ -20,6 +20,7 @@ import com.github.zhongl.codec.Decoder;
 import com.github.zhongl.io.FileAppender;
 import com.github.zhongl.io.FileChannels;
 import com.github.zhongl.io.IterableFile;
+import com.github.zhongl.io.ReadOnlyFiles;
 import com.github.zhongl.util.Nils;
 import com.google.common.base.Function;
 
@@ -27,24 +28,36 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
 public class Page<V> extends Numbered<Offset> implements Iterable<Element<V>> {
     protected final File file;
     protected final Decoder<V> decoder;
+    protected final ReadOnlyFiles files;
+    protected final AtomicLong deadBytes;
 
-    public Page(File file, Offset offset, Decoder<V> decoder) {
+    public Page(File file, Offset offset, Decoder<V> decoder, ReadOnlyFiles files) {
+        this(file, offset, decoder, files, 0L);
+    }
+
+    /** @param deadBytes of elements had been updated or removed. */
+    public Page(File file, Offset offset, Decoder<V> decoder, ReadOnlyFiles files, long deadBytes) {
         super(offset);
         this.file = file;
         this.decoder = decoder;
+        this.files = files;
+        this.deadBytes = new AtomicLong(deadBytes);
     }
 
     public String fileName() {return file.getName();}
 
     public V get(final Range range) {
         try {
-            return FileChannels.read(file, refer(range.from()), (int) range.length(), new Function<ByteBuffer, V>() {
+            return files.read(file, refer(range.from()), (int) range.length(), new Function<ByteBuffer, V>() {
                 @Override
                 public V apply(ByteBuffer byteBuffer) {
                     return decoder.decode(byteBuffer);
@@ -55,7 +68,31 @@ public class Page<V> extends Numbered<Offset> implements Iterable<Element<V>> {
         }
     }
 
-    public Offset nextPageNumber() { return new Offset(number().value() + file.length()); }
+    /** Read ranges in ascending order, adjacent ones are coalesced into one read like {@link RangeJoiner}. */
+    public List<V> get(List<Range> sortedRanges) {
+        List<V> values = new ArrayList<V>(sortedRanges.size());
+        for (int from = 0; from < sortedRanges.size(); ) {
+            int to = from + 1;
+            while (to < sortedRanges.size() && sortedRanges.get(to - 1).to() == sortedRanges.get(to).from()) to++;
+            values.addAll(read(sortedRanges.subList(from, to)));
+            from = to;
+        }
+        return values;
+    }
+
+    public Offset nextPageNumber() { return new Offset(number().value() + length()); }
+
+    public long length() { return file.length(); }
+
+    public long deadBytes() { return deadBytes.get(); }
+
+    public void markDead(long bytes) { deadBytes.addAndGet(bytes); }
+
+    /** @return ratio of dead bytes in [0, 1]. */
+    public double garbageRatio() {
+        long length = length();
+        return length == 0L ? 0.0 : Math.min(1.0, deadBytes() * 1.0 / length);
+    }
 
     @Override
     public Iterator<Element<V>> iterator() {
@@ -92,6 +129,28 @@ public class Page<V> extends Numbered<Offset> implements Iterable<Element<V>> {
         }
     }
 
+    private List<V> read(final List<Range> adjacentRanges) {
+        final long start = adjacentRanges.get(0).from();
+        long end = adjacentRanges.get(adjacentRanges.size() - 1).to();
+        try {
+            return files.read(file, refer(start), (int) (end - start), new Function<ByteBuffer, List<V>>() {
+                @Override
+                public List<V> apply(ByteBuffer byteBuffer) {
+                    int base = byteBuffer.position();
+                    List<V> values = new ArrayList<V>(adjacentRanges.size());
+                    for (Range range : adjacentRanges) {
+                        ByteBuffer duplicate = byteBuffer.duplicate();
+                        duplicate.limit(base + (int) (range.to() - start)).position(base + (int) (range.from() - start));
+                        values.add(decoder.decode(duplicate));
+                    }
+                    return values;
+                }
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     private int refer(long absolute) { return (int) (absolute - number().value()); }
 
 }
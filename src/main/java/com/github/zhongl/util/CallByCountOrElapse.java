@@ -38,8 +38,11 @@ public class CallByCountOrElapse {
         byElapse.reset();
     }
 
-    public Boolean tryCallByCount() throws Exception {
-        if (!byCount.tryCall(callable)) return false;
+    public Boolean tryCallByCount() throws Exception { return tryCallByCount(1); }
+
+    /** @param delta of count, such as the size of a batch. */
+    public Boolean tryCallByCount(int delta) throws Exception {
+        if (!byCount.tryCall(callable, delta)) return false;
         reset();
         return true;
     }
@@ -58,8 +61,9 @@ public class CallByCountOrElapse {
             this.count = count;
         }
 
-        public boolean tryCall(Callable<?> runnable) throws Exception {
-            if (++currentCount < count) return false;
+        public boolean tryCall(Callable<?> runnable, int delta) throws Exception {
+            currentCount += delta;
+            if (currentCount < count) return false;
 
             runnable.call();
             return true;
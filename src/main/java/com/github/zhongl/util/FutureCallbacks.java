@@ -20,6 +20,8 @@ import com.google.common.util.concurrent.FutureCallback;
 
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
 public class FutureCallbacks {
@@ -35,6 +37,36 @@ public class FutureCallbacks {
         };
     }
 
+    /** @return a callback delegates only the first invocation of either method, the others would be ignored. */
+    public static <T> FutureCallback<T> once(final FutureCallback<T> callback) {
+        return new FutureCallback<T>() {
+            private final AtomicBoolean invoked = new AtomicBoolean(false);
+
+            @Override
+            public void onSuccess(T result) { if (invoked.compareAndSet(false, true)) callback.onSuccess(result); }
+
+            @Override
+            public void onFailure(Throwable t) { if (invoked.compareAndSet(false, true)) callback.onFailure(t); }
+        };
+    }
+
+    /**
+     * @return a callback should be invoked {@code count} times, which delegates success after all of them succeed, or
+     *         the first failure, the others would be ignored.
+     */
+    public static FutureCallback<Void> aggregate(int count, final FutureCallback<Void> callback) {
+        final FutureCallback<Void> once = once(callback);
+        if (count == 0) once.onSuccess(Nils.VOID);
+        final AtomicInteger rest = new AtomicInteger(count);
+        return new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) { if (rest.decrementAndGet() == 0) once.onSuccess(result); }
+
+            @Override
+            public void onFailure(Throwable t) { once.onFailure(t); }
+        };
+    }
+
     public static <T> T call(Function<FutureCallback<T>, Void> function) {
         CallbackFuture<T> callback = new CallbackFuture<T>();
         function.apply(callback);
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.index.Key;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.github.zhongl.api.TestKeys.key;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class AsyncGetterTest {
+
+    private AsyncGetter<Integer> getter;
+
+    @Test
+    public void batchConcurrentMisses() throws Exception {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch blocking = new CountDownLatch(1);
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+        getter = new AsyncGetter<Integer>(new Function<Collection<Key>, Map<Key, Integer>>() {
+            @Override
+            public Map<Key, Integer> apply(Collection<Key> keys) {
+                reading.countDown();
+                try {
+                    blocking.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                batchSizes.add(keys.size());
+                Map<Key, Integer> map = new HashMap<Key, Integer>();
+                for (Key key : keys) if (!key.equals(key(0))) map.put(key, 1);
+                return map;
+            }
+        }, 1, 256);
+
+        List<ListenableFuture<Integer>> futures = new ArrayList<ListenableFuture<Integer>>();
+        futures.add(getter.get(key(0)));
+        reading.await(); // the only reader is blocked
+
+        for (int i = 1; i < 10; i++) futures.add(getter.get(key(i)));
+        assertThat(futures.get(9).isDone(), is(false));
+
+        blocking.countDown();
+
+        assertThat(futures.get(0).get(), is(nullValue()));
+        for (int i = 1; i < 10; i++) assertThat(futures.get(i).get(), is(1));
+        assertThat(batchSizes, is(Arrays.asList(1, 9)));
+    }
+
+    @Test
+    public void rejectIfFull() throws Exception {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch blocking = new CountDownLatch(1);
+
+        getter = new AsyncGetter<Integer>(new Function<Collection<Key>, Map<Key, Integer>>() {
+            @Override
+            public Map<Key, Integer> apply(Collection<Key> keys) {
+                reading.countDown();
+                try {
+                    blocking.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                Map<Key, Integer> map = new HashMap<Key, Integer>();
+                for (Key key : keys) map.put(key, 1);
+                return map;
+            }
+        }, 1, 256, 2);
+
+        ListenableFuture<Integer> first = getter.get(key(0));
+        reading.await(); // the only reader is blocked
+
+        ListenableFuture<Integer> second = getter.get(key(1));
+        ListenableFuture<Integer> third = getter.get(key(2));
+        ListenableFuture<Integer> rejected = getter.get(key(3));
+
+        try {
+            rejected.get();
+            fail("Should be rejected.");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), is(instanceOf(RejectedExecutionException.class)));
+        }
+
+        blocking.countDown();
+        assertThat(first.get(), is(1));
+        assertThat(second.get(), is(1));
+        assertThat(third.get(), is(1));
+        assertThat(getter.get(key(4)).get(), is(1)); // accepted again after drained
+    }
+
+    @Test
+    public void failure() throws Exception {
+        getter = new AsyncGetter<Integer>(new Function<Collection<Key>, Map<Key, Integer>>() {
+            @Override
+            public Map<Key, Integer> apply(Collection<Key> keys) {
+                throw new IllegalStateException("disk failure");
+            }
+        });
+
+        try {
+            getter.get(key(0)).get();
+            fail("Should be failed.");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause().getMessage(), is("disk failure"));
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        getter.shutdown();
+    }
+}
@@ -28,4 +28,29 @@ public class DefragPolicyTest {
         assertThat(defragPolicy.evaluate(10, 0), is(false));
         assertThat(defragPolicy.evaluate(2, 0), is(true));
     }
+
+    @Test
+    public void costBased() throws Exception {
+        DefragPolicy defragPolicy = new DefragPolicy();
+        defragPolicy.setCostBased(true);
+        defragPolicy.setReclaimPercentThreshold(50);
+
+        defragPolicy.measure(0L, 1000L);
+        assertThat(defragPolicy.evaluate(10, 0), is(false)); // nothing to reclaim
+
+        defragPolicy.measure(300L, 1000L);
+        assertThat(defragPolicy.evaluate(10, 0), is(false)); // 300 < 700 * 50%
+
+        defragPolicy.measure(400L, 1000L);
+        assertThat(defragPolicy.evaluate(10, 0), is(true));  // 400 >= 600 * 50%
+
+        defragPolicy.flushed(100L, 10L);
+        assertThat(defragPolicy.getEstimatedDefragMillis(), is(60L));
+
+        defragPolicy.setMaxDefragMillis(50L);
+        assertThat(defragPolicy.evaluate(10, 0), is(false)); // over budget
+
+        defragPolicy.setMaxDefragMillis(100L);
+        assertThat(defragPolicy.evaluate(10, 0), is(true));
+    }
 }
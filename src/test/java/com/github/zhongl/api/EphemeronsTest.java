@@ -17,9 +17,9 @@
 package com.github.zhongl.api;
 
 import com.github.zhongl.index.Key;
+import com.github.zhongl.util.CallbackFuture;
 import com.github.zhongl.util.Entry;
 import com.github.zhongl.util.FutureCallbacks;
-import com.github.zhongl.util.Md5;
 import com.github.zhongl.util.Nils;
 import com.google.common.util.concurrent.FutureCallback;
 import org.junit.Before;
@@ -30,6 +30,7 @@ import java.util.*;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
+import static com.github.zhongl.api.TestKeys.key;
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.assertThat;
 
@@ -47,7 +48,16 @@ public class EphemeronsTest {
         mergeBefore = new Semaphore(0);
         mergeAfter = new Semaphore(0);
 
-        ephemerons = new Ephemerons<Integer>() {
+        ephemerons = newEphemerons(1);
+        ignore = FutureCallbacks.ignore();
+    }
+
+    private Ephemerons<Integer> newEphemerons(int stripes) {
+        return newEphemerons(stripes, Ephemerons.MAX_STALE_RECORDS);
+    }
+
+    private Ephemerons<Integer> newEphemerons(int stripes, int maxStaleRecords) {
+        return new Ephemerons<Integer>(Ephemerons.MAX_FLUSHING_GENERATIONS, stripes, maxStaleRecords) {
             @Override
             protected void requestFlush(
                     final Collection<WriteOperation<Entry<Key, Integer>>> addOrUpdates,
@@ -69,7 +79,6 @@ public class EphemeronsTest {
                 return store.get(key);
             }
         };
-        ignore = FutureCallbacks.ignore();
     }
 
     private void afterMerging() throws InterruptedException {mergeAfter.acquire();}
@@ -145,6 +154,80 @@ public class EphemeronsTest {
         assertThat(ephemerons.get(key), is(2));
     }
 
+    @Test
+    public void flushDuringFlushing() throws Exception {
+        ephemerons.throughout(5);
+
+        ephemerons.add(key(1), 1, ignore);
+        ephemerons.flush();
+        beforeMerging();
+
+        ephemerons.add(key(2), 2, ignore);
+        ephemerons.flush(); // the second generation only has key(2)
+        beforeMerging();
+
+        afterMerging();
+        afterMerging();
+        assertThat(store.ordering.size(), is(2));
+        assertThat(store.get(key(1)), is(1));
+        assertThat(store.get(key(2)), is(2));
+        assertThat(ephemerons.getSize(), is(0));
+        assertThat(ephemerons.getFlushingGenerations(), is(0));
+        assertThat(ephemerons.throughout(0), is(5));
+    }
+
+    @Test
+    public void releaseGenerationIfCollectingFailed() throws Exception {
+        final int[] failures = {Ephemerons.MAX_FLUSHING_GENERATIONS};
+        ephemerons = new Ephemerons<Integer>(Ephemerons.MAX_FLUSHING_GENERATIONS, 1) {
+            @Override
+            protected void requestFlush(
+                    Collection<WriteOperation<Entry<Key, Integer>>> addOrUpdates,
+                    Collection<WriteOperation<Key>> removes,
+                    FutureCallback<Void> futureCallback) {
+                store.merge(addOrUpdates, removes, futureCallback);
+            }
+
+            @Override
+            protected Integer getMiss(Key key) { return store.get(key); }
+
+            @Override
+            protected void beforeCollecting() {
+                if (failures[0]-- > 0) throw new IllegalStateException("mock io error");
+            }
+        };
+        ephemerons.throughout(5);
+        ephemerons.add(key(1), 1, ignore);
+
+        for (int i = 0; i < Ephemerons.MAX_FLUSHING_GENERATIONS; i++) {
+            try {
+                ephemerons.flush();
+            } catch (IllegalStateException expected) { }
+        }
+        assertThat(ephemerons.getFlushingGenerations(), is(0));
+
+        ephemerons.flush();
+        assertThat(store.get(key(1)), is(1));
+        assertThat(ephemerons.getSize(), is(0));
+    }
+
+    @Test
+    public void stripes() throws Exception {
+        ephemerons = newEphemerons(4);
+        assertThat(ephemerons.throughout(34), is(34)); // permits of stripes are 9, 9, 8, 8
+
+        for (int i = 0; i < 8; i++) ephemerons.add(key(i), i, ignore);
+        assertThat(ephemerons.getSize(), is(8));
+        assertThat(ephemerons.get(key(3)), is(3));
+
+        ephemerons.flush();
+        afterMerging();
+
+        for (int i = 0; i < 8; i++) assertThat(store.get(key(i)), is(i));
+        assertThat(ephemerons.getSize(), is(0));
+        assertThat(ephemerons.throughout(-3), is(31));
+    }
+
     @Test
     public void flowControlAndOrdering() throws Exception {
         ephemerons.throughout(4);
@@ -163,6 +246,49 @@ public class EphemeronsTest {
         assertThat(ephemerons.throughout(0), is(4));
     }
 
+    @Test
+    public void addAllAndRemoveAll() throws Exception {
+        ephemerons.throughout(4);
+
+        List<Entry<Key, Integer>> entries = new ArrayList<Entry<Key, Integer>>();
+        for (int i = 0; i < 8; i++) entries.add(new Entry<Key, Integer>(key(i), i));
+
+        CallbackFuture<Void> added = new CallbackFuture<Void>();
+        ephemerons.addAll(entries, added); // larger than throughout
+        ephemerons.flush();
+        added.get();
+
+        for (int i = 0; i < store.ordering.size(); i++) assertThat(store.ordering.get(i), is(i));
+        assertThat(store.ordering.size(), is(8));
+
+        List<Key> keys = new ArrayList<Key>();
+        for (int i = 0; i < 8; i++) keys.add(key(i));
+
+        CallbackFuture<Void> removed = new CallbackFuture<Void>();
+        ephemerons.removeAll(keys, removed);
+        ephemerons.flush();
+        removed.get();
+
+        for (Key key : keys) assertThat(ephemerons.get(key), is(nullValue()));
+        assertThat(ephemerons.throughout(0), is(4));
+    }
+
+    @Test
+    public void compactLogOfHotKey() throws Exception {
+        ephemerons = newEphemerons(1, 8);
+        ephemerons.throughout(2);
+
+        Key key = key(1);
+        for (int i = 0; i < 100; i++) ephemerons.add(key, i, ignore);
+        assertThat(ephemerons.getLogSize(), is(lessThanOrEqualTo(9)));
+        assertThat(ephemerons.get(key), is(99));
+
+        ephemerons.flush();
+        afterMerging();
+        assertThat(store.get(key), is(99));
+        assertThat(ephemerons.getLogSize(), is(0));
+    }
+
     @Test
     public void issue51() throws Exception {
         // Fixed #51 : Unexpected thoughput increment.
@@ -198,8 +324,6 @@ public class EphemeronsTest {
         assertThat(mergeAfter.tryAcquire(20L, TimeUnit.MILLISECONDS), is(true));
     }
 
-    private Key key(int i) {return new Md5Key(Md5.md5((i + "").getBytes()));}
-
     class Store {
         final Map<Key, Integer> appendings = Collections.synchronizedMap(new HashMap<Key, Integer>());
         final Set<Key> removings = Collections.synchronizedSet(new HashSet<Key>());
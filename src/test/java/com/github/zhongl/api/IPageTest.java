@@ -30,7 +30,7 @@ import javax.management.MBeanServer;
 import javax.management.ObjectName;
 import java.io.File;
 import java.lang.management.ManagementFactory;
-import java.util.Iterator;
+import java.util.*;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -91,6 +91,41 @@ public class IPageTest extends FileTestContext {
         assertThat(iPage.get(key), is(value));
     }
 
+    @Test
+    public void getAll() throws Exception {
+        dir = testDir("getAll");
+        iPage = stringIPage(dir, 100, 10, 100L);
+
+        Map<String, String> entries = new HashMap<String, String>();
+        for (int i = 0; i < 20; i++) entries.put(i + "", i + "");
+
+        CallbackFuture<Void> future = new CallbackFuture<Void>();
+        iPage.addAll(entries, future);
+        future.get();
+
+        iPage.add("ephemeral", "ephemeral", FutureCallbacks.<Void>ignore());
+
+        Map<String, String> expected = new HashMap<String, String>(entries);
+        expected.put("ephemeral", "ephemeral");
+        List<String> keys = new ArrayList<String>(expected.keySet());
+        keys.add("missing");
+
+        assertThat(iPage.getAll(keys), is(expected));
+    }
+
+    @Test
+    public void getAsync() throws Exception {
+        dir = testDir("getAsync");
+        iPage = stringIPage(dir, 10, 1, 100L);
+
+        CallbackFuture<Void> future = new CallbackFuture<Void>();
+        iPage.add("key", "value", future);
+        future.get();
+
+        assertThat(iPage.getAsync("key").get(), is("value"));
+        assertThat(iPage.getAsync("missing").get(), is(nullValue()));
+    }
+
     @Test
     public void mbeanRegistration() throws Exception {
         dir = testDir("mbeanRegistration");
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class MailboxTest {
+
+    @Test
+    public void orderOfEachProducer() throws Exception {
+        for (Mailbox.WaitStrategy strategy : Mailbox.WaitStrategy.values()) {
+            final Mailbox mailbox = new Mailbox(8, strategy); // smaller than offers to make producers wait
+            mailbox.bind();
+
+            final int producers = 4;
+            final int times = 1000;
+            final CountDownLatch latch = new CountDownLatch(producers);
+            for (int p = 0; p < producers; p++) {
+                final int producer = p;
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < times; i++) mailbox.offer(new Task(producer, i));
+                        latch.countDown();
+                    }
+                }).start();
+            }
+
+            int[] expected = new int[producers];
+            for (int i = 0; i < producers * times; i++) {
+                Task task = (Task) mailbox.poll(1L, TimeUnit.SECONDS);
+                assertThat(task.sequence, is(expected[task.producer]++));
+            }
+            latch.await();
+            assertThat(mailbox.poll(), is(nullValue()));
+            assertThat(mailbox.getDepth(), is(0));
+        }
+    }
+
+    @Test
+    public void offerToSelfWhenFull() throws Exception {
+        Mailbox mailbox = new Mailbox(2, Mailbox.WaitStrategy.PARK);
+        mailbox.bind();
+
+        for (int i = 0; i < 5; i++) mailbox.offer(new Task(0, i)); // never blocks the consumer
+        assertThat(mailbox.getDepth(), is(5));
+
+        List<Integer> sequences = new ArrayList<Integer>();
+        for (Runnable task = mailbox.poll(); task != null; task = mailbox.poll()) sequences.add(((Task) task).sequence);
+        assertThat(sequences.toString(), is("[0, 1, 2, 3, 4]"));
+    }
+
+    @Test
+    public void pollTimeout() throws Exception {
+        Mailbox mailbox = new Mailbox(2, Mailbox.WaitStrategy.PARK);
+        mailbox.bind();
+        assertThat(mailbox.poll(10L, TimeUnit.MILLISECONDS), is(nullValue()));
+    }
+
+    private static class Task implements Runnable {
+        final int producer;
+        final int sequence;
+
+        Task(int producer, int sequence) {
+            this.producer = producer;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() { }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.github.zhongl.api;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+import static com.github.zhongl.api.TestKeys.key;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class Md5KeyTest {
+
+    @Test
+    public void compareAsUnsignedBytes() throws Exception {
+        Md5KeyCodec codec = new Md5KeyCodec();
+
+        for (int i = 0; i < 1000; i++) {
+            Md5Key a = key(i);
+            Md5Key b = key(i + 1);
+
+            int expect = Integer.signum(new BigInteger(1, a.toBytes()).compareTo(new BigInteger(1, b.toBytes())));
+            assertThat(Integer.signum(a.compareTo(b)), is(expect));
+            assertThat(Integer.signum(b.compareTo(a)), is(-expect));
+
+            ByteBuffer buffer = ByteBuffer.allocate(4 + Md5Key.BYTE_LENGTH);
+            buffer.position(4);
+            buffer.put(b.toBytes());
+            assertThat(Integer.signum(codec.compare(a, buffer, 4)), is(expect));
+            assertThat(codec.compare(b, buffer, 4), is(0));
+        }
+    }
+
+    @Test
+    public void hashInPlace() throws Exception {
+        Md5KeyCodec codec = new Md5KeyCodec();
+
+        for (int i = 0; i < 100; i++) {
+            Md5Key key = key(i);
+            ByteBuffer buffer = ByteBuffer.allocate(4 + Md5Key.BYTE_LENGTH);
+            buffer.position(4);
+            buffer.put(key.toBytes());
+            assertThat(codec.highHash(buffer, 4), is(key.highHash()));
+            assertThat(codec.lowHash(buffer, 4), is(key.lowHash()));
+        }
+    }
+}
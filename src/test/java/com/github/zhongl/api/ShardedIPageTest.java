@@ -0,0 +1,175 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.util.CallbackFuture;
+import com.github.zhongl.util.FileTestContext;
+import com.github.zhongl.util.Md5;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class ShardedIPageTest extends FileTestContext {
+
+    private ShardedIPage<String, String> iPage;
+
+    @Test
+    public void addGetRemoveAndIterate() throws Exception {
+        dir = testDir("addGetRemoveAndIterate");
+        iPage = stringIPage(dir, 4, 100, 10, 100L);
+
+        int times = 100;
+        Set<String> expected = new HashSet<String>();
+        List<CallbackFuture<Void>> futures = new ArrayList<CallbackFuture<Void>>();
+        for (int i = 0; i < times; i++) {
+            CallbackFuture<Void> future = new CallbackFuture<Void>();
+            iPage.add(i + "", i + "", future);
+            futures.add(future);
+            expected.add(i + "");
+        }
+        for (CallbackFuture<Void> future : futures) future.get(); // durable in every shard
+
+        for (int i = 0; i < times; i++) assertThat(iPage.get(i + ""), is(i + ""));
+
+        int directories = 0;
+        for (File file : dir.listFiles()) if (file.isDirectory()) directories++;
+        assertThat(directories, is(4));
+
+        CallbackFuture<Void> future = new CallbackFuture<Void>();
+        iPage.remove("0", future);
+        future.get();
+        expected.remove("0");
+
+        assertThat(iPage.get("0"), is(nullValue()));
+
+        Set<String> actual = new HashSet<String>();
+        for (String value : iPage) actual.add(value);
+        assertThat(actual, is(expected));
+    }
+
+    @Test
+    public void batchAcrossShards() throws Exception {
+        dir = testDir("batchAcrossShards");
+        iPage = stringIPage(dir, 4, 100, 10, 100L);
+
+        Map<String, String> entries = new HashMap<String, String>();
+        for (int i = 0; i < 100; i++) entries.put(i + "", i + "");
+        CallbackFuture<Void> added = new CallbackFuture<Void>();
+        iPage.addAll(entries, added);
+        added.get(); // durable in every shard
+
+        List<String> keys = new ArrayList<String>(entries.keySet());
+        keys.add("missing");
+        assertThat(iPage.getAll(keys), is(entries));
+        assertThat(iPage.getAsync("1").get(), is("1"));
+        assertThat(iPage.getAsync("missing").get(), is(nullValue()));
+
+        List<String> removing = new ArrayList<String>();
+        for (int i = 0; i < 50; i++) removing.add(i + "");
+        CallbackFuture<Void> removed = new CallbackFuture<Void>();
+        iPage.removeAll(removing, removed);
+        removed.get();
+
+        for (String key : removing) entries.remove(key);
+        assertThat(iPage.getAll(keys), is(entries));
+        assertThat(iPage.getAsync("1").get(), is(nullValue()));
+    }
+
+    @Test
+    public void emptyBatch() throws Exception {
+        dir = testDir("emptyBatch");
+        iPage = stringIPage(dir, 4, 100, 10, 100L);
+
+        CallbackFuture<Void> added = new CallbackFuture<Void>();
+        iPage.addAll(Collections.<String, String>emptyMap(), added);
+        added.get(1L, TimeUnit.SECONDS); // no shard would call back
+
+        CallbackFuture<Void> removed = new CallbackFuture<Void>();
+        iPage.removeAll(Collections.<String>emptySet(), removed);
+        removed.get(1L, TimeUnit.SECONDS);
+
+        assertThat(iPage.getAll(Collections.<String>emptySet()).isEmpty(), is(true));
+    }
+
+    @Test
+    public void uniqueShardNames() throws Exception {
+        dir = testDir("uniqueShardNames");
+        iPage = stringIPage(dir, 4, 100, 10, 100L);
+
+        Set<String> names = new HashSet<String>();
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+            if (thread.getName().startsWith("IPage@" + dir.getName() + "/")) names.add(thread.getName());
+        assertThat(names.size(), is(4));
+    }
+
+    @Test
+    public void reopenWithDifferentShards() throws Exception {
+        dir = testDir("reopenWithDifferentShards");
+        iPage = stringIPage(dir, 4, 100, 10, 100L);
+        iPage.stop();
+
+        try {
+            iPage = stringIPage(dir, 2, 100, 10, 100L);
+            fail("Shards should not be changed.");
+        } catch (IllegalArgumentException e) { }
+
+        iPage = stringIPage(dir, 4, 100, 10, 100L);
+    }
+
+    @Test
+    public void releaseBuiltShardsIfOneFailed() throws Exception {
+        dir = testDir("releaseBuiltShardsIfOneFailed");
+        File blocker = new File(dir, "1");
+        Files.touch(blocker); // shard 1 can't be built on a file
+
+        try {
+            iPage = stringIPage(dir, 4, 100, 10, 100L);
+            fail("Shard 1 should not be built.");
+        } catch (Exception e) { }
+
+        assertThat(blocker.delete(), is(true));
+        iPage = stringIPage(dir, 4, 100, 10, 100L); // mbeans of shard 0 have been unregistered
+    }
+
+    @Override
+    @After
+    public void tearDown() throws Exception {
+        iPage.stop();
+        super.tearDown();
+    }
+
+    private ShardedIPage<String, String> stringIPage(File dir, int shards, int throughout, int flushCount, long flushMillis)
+            throws Exception {
+        ShardedIPage<String, String> stringIPage =
+                new ShardedIPage<String, String>(dir, new StringCodec(), shards, throughout, flushMillis, flushCount) {
+                    @Override
+                    protected Md5Key transform(String key) { return new Md5Key(Md5.md5(key.getBytes())); }
+                };
+        stringIPage.start();
+        return stringIPage;
+    }
+}
@@ -17,16 +17,26 @@
 package com.github.zhongl.api;
 
 import com.github.zhongl.codec.Codec;
+import com.github.zhongl.index.Difference;
+import com.github.zhongl.index.Index;
 import com.github.zhongl.index.IndexCodec;
 import com.github.zhongl.index.Key;
+import com.github.zhongl.page.Element;
+import com.github.zhongl.page.Range;
 import com.github.zhongl.util.Entry;
 import com.github.zhongl.util.FileTestContext;
+import com.google.common.base.Function;
 import com.google.common.io.Files;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
 
+import static com.github.zhongl.api.TestKeys.key;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.not;
 import static org.junit.Assert.assertThat;
@@ -53,5 +63,76 @@ public class SnapshotTest extends FileTestContext {
 
         assertThat(new File(pagesDir, "null.s").exists(), is(false));
     }
+
+    @Test
+    public void markDeadAndCompact() throws Exception {
+        dir = testDir("markDeadAndCompact");
+        File headFile = new File(dir, "HEAD");
+        File pagesDir = new File(dir, "pages");
+
+        Md5KeyCodec keyCodec = new Md5KeyCodec();
+        RangeIndexCodec indexCodec = new RangeIndexCodec(keyCodec);
+        Codec<Integer> valueCodec = new TestIntegerCodec();
+
+        Snapshot<Integer> snapshot = new Snapshot<Integer>(dir, indexCodec, new EntryCodec<Integer>(keyCodec, valueCodec));
+
+        append(snapshot, indexCodec, entry(1, 1), entry(2, 2), entry(3, 3));
+        assertThat(snapshot.rangesOf(Arrays.asList(key(4))).isEmpty(), is(true));
+
+        List<Range> shadowed = snapshot.rangesOf(Arrays.asList(key(2), key(1), key(1)));
+        assertThat(shadowed.size(), is(2));
+
+        append(snapshot, indexCodec, entry(1, 10), entry(2, 20));
+        snapshot.markDead(shadowed);
+
+        long deadBytes = shadowed.get(0).length() + shadowed.get(1).length();
+        assertThat(snapshot.garbageBytes(), is(deadBytes));
+
+        snapshot.updateAndCleanUp();
+
+        String snapshotFileName = Files.readFirstLine(headFile, Charset.defaultCharset());
+        long persistedDeadBytes = 0L;
+        for (String line : Files.readLines(new File(pagesDir, snapshotFileName), Charset.defaultCharset())) {
+            String[] columns = line.split("\t");
+            if (columns[0].equals("P")) persistedDeadBytes += Long.parseLong(columns[3]);
+        }
+        assertThat(persistedDeadBytes, is(deadBytes));
+
+        assertThat(snapshot.compact(0.5, indexer(indexCodec)), is(true));
+        assertThat(snapshot.garbageBytes(), is(0L));
+        assertThat(snapshot.get(key(1)), is(10));
+        assertThat(snapshot.get(key(2)), is(20));
+        assertThat(snapshot.get(key(3)), is(3));
+
+        assertThat(snapshot.compact(0.5, indexer(indexCodec)), is(false));
+        snapshot.close();
+    }
+
+    private static void append(Snapshot<Integer> snapshot, RangeIndexCodec indexCodec, Entry<Key, Integer>... entries)
+            throws IOException {
+        final Difference difference = new Difference(new TreeSet<Index>());
+        final Function<Element<Entry<Key, Integer>>, Index> indexer = indexer(indexCodec);
+        snapshot.append(Arrays.asList(entries), new Function<Element<Entry<Key, Integer>>, Void>() {
+            @Override
+            public Void apply(Element<Entry<Key, Integer>> element) {
+                difference.add(indexer.apply(element));
+                return null;
+            }
+        });
+        snapshot.merge(difference);
+    }
+
+    private static Function<Element<Entry<Key, Integer>>, Index> indexer(final RangeIndexCodec indexCodec) {
+        return new Function<Element<Entry<Key, Integer>>, Index>() {
+            @Override
+            public Index apply(Element<Entry<Key, Integer>> element) {
+                return indexCodec.index(element.value().key(), element.range());
+            }
+        };
+    }
+
+    private static Entry<Key, Integer> entry(int key, int value) {
+        return new Entry<Key, Integer>(key(key), value);
+    }
 }
 
@@ -20,19 +20,23 @@ import com.github.zhongl.codec.Codec;
 import com.github.zhongl.index.Key;
 import com.github.zhongl.util.*;
 import com.google.common.base.CharMatcher;
-import com.google.common.primitives.Ints;
 import com.google.common.util.concurrent.FutureCallback;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.File;
-import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import static com.github.zhongl.api.TestKeys.key;
 import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Mockito.*;
@@ -43,6 +47,7 @@ public class StorageTest extends FileTestContext {
     private DefragPolicy defragPolicy;
     private Codec<Entry<Key, Integer>> entryCodec;
     private RangeIndexCodec indexCodec;
+    private Codec<Integer> valueCodec;
 
 
     @Override
@@ -55,17 +60,8 @@ public class StorageTest extends FileTestContext {
         defragPolicy = mock(DefragPolicy.class);
 
         indexCodec = new RangeIndexCodec(keyCodec);
-        entryCodec = new EntryCodec<Integer>(keyCodec, new Codec<Integer>() {
-            @Override
-            public Integer decode(ByteBuffer byteBuffer) {
-                return byteBuffer.getInt();
-            }
-
-            @Override
-            public ByteBuffer encode(Integer value) {
-                return (ByteBuffer) ByteBuffer.allocate(4).putInt(value).flip();
-            }
-        });
+        valueCodec = new TestIntegerCodec();
+        entryCodec = new EntryCodec<Integer>(keyCodec, valueCodec);
     }
 
     @Test
@@ -73,7 +69,7 @@ public class StorageTest extends FileTestContext {
         dir = testDir("usage");
 
         Snapshot<Integer> snapshot = new Snapshot<Integer>(dir, indexCodec, entryCodec);
-        Storage<Integer> storage = new Storage<Integer>(snapshot, indexCodec, defragPolicy);
+        Storage<Integer> storage = new Storage<Integer>(snapshot, indexCodec, defragPolicy, new ValueCache<Integer>(valueCodec));
 
         Collection<WriteOperation<Entry<Key, Integer>>> addOrUpdates;
         Collection<WriteOperation<Key>> removes;
@@ -102,9 +98,44 @@ public class StorageTest extends FileTestContext {
         doReturn(true).when(defragPolicy).evaluate(anyInt(), anyInt());
         storage.merge(addOrUpdates, removes, ignore);
 
+        assertThat(storage.get(key(1)), is(nullValue()));
         IteratorAsserts.assertIteratorOf(storage, 2, 3);
     }
 
+    @Test
+    public void accountGarbageOnlyIfCompactionOrCostBasedDefragNeedsIt() throws Exception {
+        dir = testDir("accountGarbageOnlyIfCompactionOrCostBasedDefragNeedsIt");
+
+        Snapshot<Integer> snapshot = new Snapshot<Integer>(dir, indexCodec, entryCodec);
+        Storage<Integer> storage = new Storage<Integer>(snapshot, indexCodec, defragPolicy, new ValueCache<Integer>(valueCodec));
+
+        Collection<WriteOperation<Key>> noRemoves = Collections.emptySet();
+        Collection<WriteOperation<Entry<Key, Integer>>> noAddOrUpdates = Collections.emptySet();
+
+        storage.merge(Arrays.asList(
+                new WriteOperation<Entry<Key, Integer>>(entry(1), ignore),
+                new WriteOperation<Entry<Key, Integer>>(entry(2), ignore)
+        ), noRemoves, ignore);
+
+        storage.merge(Arrays.asList(new WriteOperation<Entry<Key, Integer>>(new Entry<Key, Integer>(key(1), 10), ignore)),
+                      noRemoves, ignore);
+        assertThat(storage.getGarbageBytes(), is(0L));
+
+        doReturn(true).when(defragPolicy).isCostBased();
+        storage.merge(noAddOrUpdates, Arrays.asList(new WriteOperation<Key>(key(2), ignore)), ignore);
+        long garbageBytes = storage.getGarbageBytes();
+        assertThat(garbageBytes, greaterThan(0L));
+
+        doReturn(false).when(defragPolicy).isCostBased();
+        doReturn(100).when(defragPolicy).getGarbageRatioThreshold();
+        storage.merge(Arrays.asList(new WriteOperation<Entry<Key, Integer>>(new Entry<Key, Integer>(key(1), 100), ignore)),
+                      noRemoves, ignore);
+        assertThat(storage.getGarbageBytes(), is(garbageBytes)); // the page of 10 was all garbage, so it was dropped
+
+        assertThat(storage.get(key(1)), is(100));
+        assertThat(storage.get(key(2)), is(nullValue()));
+    }
+
     @Test
     public void issue36() throws Exception {
         // Fixed #36 : Appendings should not be removed during defragment.
@@ -112,7 +143,7 @@ public class StorageTest extends FileTestContext {
         dir = testDir("issue36");
 
         Snapshot<Integer> snapshot = new Snapshot<Integer>(dir, indexCodec, entryCodec);
-        Storage<Integer> storage = new Storage<Integer>(snapshot, indexCodec, defragPolicy);
+        Storage<Integer> storage = new Storage<Integer>(snapshot, indexCodec, defragPolicy, new ValueCache<Integer>(valueCodec));
 
         Collection<WriteOperation<Entry<Key, Integer>>> addOrUpdates;
         Collection<WriteOperation<Key>> removes;
@@ -151,7 +182,7 @@ public class StorageTest extends FileTestContext {
         dir = testDir("issue38");
 
         Snapshot<Integer> snapshot = new Snapshot<Integer>(dir, indexCodec, entryCodec);
-        Storage<Integer> storage = new Storage<Integer>(snapshot, indexCodec, defragPolicy);
+        Storage<Integer> storage = new Storage<Integer>(snapshot, indexCodec, defragPolicy, new ValueCache<Integer>(valueCodec));
 
         Collection<WriteOperation<Entry<Key, Integer>>> addOrUpdates;
         Collection<WriteOperation<Key>> removes;
@@ -182,7 +213,7 @@ public class StorageTest extends FileTestContext {
         dir = testDir("issue42");
 
         Snapshot<Integer> snapshot = new Snapshot<Integer>(dir, indexCodec, entryCodec);
-        Storage<Integer> storage = new Storage<Integer>(snapshot, indexCodec, defragPolicy);
+        Storage<Integer> storage = new Storage<Integer>(snapshot, indexCodec, defragPolicy, new ValueCache<Integer>(valueCodec));
 
         Collection<WriteOperation<Entry<Key, Integer>>> addOrUpdates;
         Collection<WriteOperation<Key>> removes;
@@ -207,7 +238,7 @@ public class StorageTest extends FileTestContext {
         dir = testDir("issue50");
 
         Snapshot<Integer> snapshot = new Snapshot<Integer>(dir, indexCodec, entryCodec);
-        Storage<Integer> storage = new Storage<Integer>(snapshot, indexCodec, defragPolicy);
+        Storage<Integer> storage = new Storage<Integer>(snapshot, indexCodec, defragPolicy, new ValueCache<Integer>(valueCodec));
 
         Collection<WriteOperation<Entry<Key, Integer>>> addOrUpdates;
         Collection<WriteOperation<Key>> removes;
@@ -251,11 +282,63 @@ public class StorageTest extends FileTestContext {
         }
     }
 
-    private static Entry<Key, Integer> entry(int i) {
-        return new Entry<Key, Integer>(key(i), i);
+    @Test
+    public void backgroundDefrag() throws Exception {
+        dir = testDir("backgroundDefrag");
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Snapshot<Integer> snapshot = new Snapshot<Integer>(dir, indexCodec, entryCodec);
+        Storage<Integer> storage = new Storage<Integer>(snapshot, indexCodec, defragPolicy, new ValueCache<Integer>(valueCodec), executor);
+
+        Collection<WriteOperation<Key>> noRemoves = Collections.emptySet();
+        Collection<WriteOperation<Entry<Key, Integer>>> noAddOrUpdates = Collections.emptySet();
+
+        storage.merge(Arrays.asList(
+                new WriteOperation<Entry<Key, Integer>>(entry(1), ignore),
+                new WriteOperation<Entry<Key, Integer>>(entry(2), ignore),
+                new WriteOperation<Entry<Key, Integer>>(entry(3), ignore)
+        ), noRemoves, ignore);
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                latch.await();
+                return null;
+            }
+        });
+
+        doReturn(true).when(defragPolicy).evaluate(anyInt(), anyInt());
+        storage.merge(Arrays.asList(new WriteOperation<Entry<Key, Integer>>(entry(4), ignore)),
+                      Arrays.asList(new WriteOperation<Key>(key(1), ignore)), ignore);
+        assertThat(storage.isDefragmenting(), is(true));
+
+        doReturn(false).when(defragPolicy).evaluate(anyInt(), anyInt());
+        storage.merge(Arrays.asList(new WriteOperation<Entry<Key, Integer>>(new Entry<Key, Integer>(key(2), 20), ignore)),
+                      Arrays.asList(new WriteOperation<Key>(key(3), ignore)), ignore); // during defragment
+
+        latch.countDown();
+        executor.submit(new Runnable() {
+            @Override
+            public void run() { }
+        }).get(); // wait for defragment done
+
+        storage.merge(Arrays.asList(new WriteOperation<Entry<Key, Integer>>(entry(5), ignore)), noRemoves, ignore);
+        assertThat(storage.isDefragmenting(), is(false));
+
+        assertThat(storage.get(key(1)), is(nullValue()));
+        assertThat(storage.get(key(2)), is(20));
+        assertThat(storage.get(key(3)), is(nullValue()));
+        assertThat(storage.get(key(4)), is(4));
+        assertThat(storage.get(key(5)), is(5));
+        IteratorAsserts.assertIteratorOf(storage, 4, 20, 5);
+
+        storage.merge(noAddOrUpdates, noRemoves, ignore);
+        IteratorAsserts.assertIteratorOf(storage, 4, 20, 5);
+        storage.stop();
     }
 
-    private static Key key(int i) {
-        return new Md5Key(Md5.md5(Ints.toByteArray(i)));
+    private static Entry<Key, Integer> entry(int i) {
+        return new Entry<Key, Integer>(key(i), i);
     }
 }
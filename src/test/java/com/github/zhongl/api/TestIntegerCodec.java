@@ -0,0 +1,14 @@
+package com.github.zhongl.api;
+
+import com.github.zhongl.codec.Codec;
+
+import java.nio.ByteBuffer;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+class TestIntegerCodec implements Codec<Integer> {
+    @Override
+    public Integer decode(ByteBuffer byteBuffer) { return byteBuffer.getInt(); }
+
+    @Override
+    public ByteBuffer encode(Integer value) { return (ByteBuffer) ByteBuffer.allocate(4).putInt(value).flip(); }
+}
@@ -0,0 +1,11 @@
+package com.github.zhongl.api;
+
+import com.github.zhongl.util.Md5;
+import com.google.common.primitives.Ints;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+class TestKeys {
+    private TestKeys() {}
+
+    static Md5Key key(int i) { return new Md5Key(Md5.md5(Ints.toByteArray(i))); }
+}
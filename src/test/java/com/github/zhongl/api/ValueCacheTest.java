@@ -0,0 +1,96 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.index.Key;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static com.github.zhongl.api.TestKeys.key;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class ValueCacheTest {
+
+    @Test
+    public void evictByBytes() throws Exception {
+        ValueCache<String> cache = new ValueCache<String>(new StringCodec(), 10L);
+
+        cache.put(key(1), "12345", cache.generation());
+        cache.put(key(2), "12345", cache.generation());
+        assertThat(cache.get(key(1)), is("12345"));
+
+        cache.put(key(3), "1", cache.generation());
+
+        assertThat(cache.get(key(2)), is(nullValue()));
+        assertThat(cache.get(key(1)), is("12345"));
+        assertThat(cache.get(key(3)), is("1"));
+        assertThat(cache.getOccupiedBytes(), is(6L));
+        assertThat(cache.getEvictions(), is(1L));
+        assertThat(cache.getHits(), is(3L));
+        assertThat(cache.getMisses(), is(1L));
+    }
+
+    @Test
+    public void invalidate() throws Exception {
+        ValueCache<String> cache = new ValueCache<String>(new StringCodec(), 10L);
+
+        long generation = cache.generation();
+        cache.put(key(1), "1", generation);
+        cache.invalidate(Arrays.<Key>asList(key(1)));
+
+        assertThat(cache.get(key(1)), is(nullValue()));
+
+        cache.put(key(1), "stale", generation);
+        assertThat(cache.get(key(1)), is(nullValue()));
+    }
+
+    @Test
+    public void disabled() throws Exception {
+        ValueCache<String> cache = new ValueCache<String>(new StringCodec(), 0L);
+        cache.put(key(1), "1", cache.generation());
+        assertThat(cache.getSize(), is(0));
+
+        cache.setCapacityBytes(10L);
+        cache.put(key(1), "1", cache.generation());
+        cache.invalidate(Collections.<Key>emptySet());
+        assertThat(cache.get(key(1)), is("1"));
+    }
+
+    @Test
+    public void keepBufferForReadInFlight() throws Exception {
+        final ValueCache<String>[] cache = new ValueCache[1];
+        cache[0] = new ValueCache<String>(new StringCodec() {
+            @Override
+            public String decode(ByteBuffer buffer) {
+                cache[0].clear(); // freed after this read finishes
+                return super.decode(buffer);
+            }
+        }, 10L);
+
+        cache[0].put(key(1), "12345", cache[0].generation());
+        assertThat(cache[0].get(key(1)), is("12345"));
+        assertThat(cache[0].getOccupiedBytes(), is(0L));
+        assertThat(cache[0].get(key(1)), is(nullValue()));
+    }
+}
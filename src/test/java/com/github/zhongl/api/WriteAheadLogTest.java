@@ -0,0 +1,244 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.codec.Codec;
+import com.github.zhongl.index.Key;
+import com.github.zhongl.io.FileAppender;
+import com.github.zhongl.util.CallbackFuture;
+import com.github.zhongl.util.Entry;
+import com.github.zhongl.util.FileTestContext;
+import com.github.zhongl.util.FutureCallbacks;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.FutureCallback;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.zhongl.api.TestKeys.key;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class WriteAheadLogTest extends FileTestContext {
+    private Codec<Integer> valueCodec;
+    private RangeIndexCodec indexCodec;
+    private Codec<Entry<Key, Integer>> entryCodec;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        Md5KeyCodec keyCodec = new Md5KeyCodec();
+        indexCodec = new RangeIndexCodec(keyCodec);
+        valueCodec = new TestIntegerCodec();
+        entryCodec = new EntryCodec<Integer>(keyCodec, valueCodec);
+    }
+
+    @Test
+    public void replayAfterCrash() throws Exception {
+        dir = testDir("replayAfterCrash");
+
+        WriteAheadLog<Integer> log = new WriteAheadLog<Integer>(new File(dir, "wal"), valueCodec);
+        log.replay(storage());
+
+        CallbackFuture<Void> added = new CallbackFuture<Void>();
+        CallbackFuture<Void> removed = new CallbackFuture<Void>();
+        log.add(key(1), 1, new CallbackFuture<Void>());
+        log.add(key(2), 2, added);
+        log.remove(key(1), removed);
+
+        added.get(1L, TimeUnit.SECONDS);
+        removed.get(1L, TimeUnit.SECONDS);
+        log.close(); // segments are left as a crash
+
+        Storage<Integer> storage = storage();
+        new WriteAheadLog<Integer>(new File(dir, "wal"), valueCodec).replay(storage);
+
+        assertThat(storage.get(key(1)), is(nullValue()));
+        assertThat(storage.get(key(2)), is(2));
+        assertThat(new File(dir, "wal").list().length, is(1));
+    }
+
+    @Test
+    public void rollAndCheckpoint() throws Exception {
+        dir = testDir("rollAndCheckpoint");
+        File walDir = new File(dir, "wal");
+
+        WriteAheadLog<Integer> log = new WriteAheadLog<Integer>(walDir, valueCodec);
+        log.replay(storage());
+
+        CallbackFuture<Void> added = new CallbackFuture<Void>();
+        log.add(key(1), 1, added);
+        log.roll();
+        added.get(1L, TimeUnit.SECONDS);
+        assertThat(walDir.list().length, is(2));
+
+        log.checkpoint(true);
+        assertThat(walDir.list().length, is(1));
+
+        log.checkpoint(true); // nothing sealed
+        assertThat(walDir.list().length, is(1));
+        log.close();
+    }
+
+    @Test
+    public void keepSegmentsAfterMergeFailed() throws Exception {
+        dir = testDir("keepSegmentsAfterMergeFailed");
+        File walDir = new File(dir, "wal");
+
+        WriteAheadLog<Integer> log = new WriteAheadLog<Integer>(walDir, valueCodec);
+        log.replay(storage());
+
+        CallbackFuture<Void> added = new CallbackFuture<Void>();
+        log.add(key(1), 1, added);
+        log.roll();
+        added.get(1L, TimeUnit.SECONDS);
+        log.checkpoint(false);
+        assertThat(walDir.list().length, is(2));
+        log.close(); // crash before a later generation merged
+
+        Storage<Integer> storage = storage();
+        new WriteAheadLog<Integer>(walDir, valueCodec).replay(storage);
+        assertThat(storage.get(key(1)), is(1));
+    }
+
+    @Test
+    public void mergeRetainedSegmentsWithNextGeneration() throws Exception {
+        dir = testDir("mergeRetainedSegmentsWithNextGeneration");
+        File walDir = new File(dir, "wal");
+
+        WriteAheadLog<Integer> log = new WriteAheadLog<Integer>(walDir, valueCodec);
+        log.replay(storage());
+
+        CallbackFuture<Void> added = new CallbackFuture<Void>();
+        log.add(key(1), 1, new CallbackFuture<Void>());
+        log.add(key(2), 2, added);
+        log.roll();
+        added.get(1L, TimeUnit.SECONDS);
+        log.checkpoint(false); // acked records are dropped from ephemerons by the failure
+        assertThat(walDir.list().length, is(2));
+
+        CallbackFuture<Void> updated = new CallbackFuture<Void>();
+        log.add(key(1), 10, updated);
+        log.roll();
+        updated.get(1L, TimeUnit.SECONDS);
+
+        Storage<Integer> storage = storage();
+        FutureCallback<Void> ignore = FutureCallbacks.ignore();
+        Collection<WriteOperation<Entry<Key, Integer>>> generation = Collections.singletonList(
+                new WriteOperation<Entry<Key, Integer>>(new Entry<Key, Integer>(key(1), 10), ignore)
+        );
+        boolean merged = log.merge(storage, generation, Collections.<WriteOperation<Key>>emptySet(), ignore);
+
+        assertThat(merged, is(true));
+        assertThat(storage.get(key(1)), is(10)); // the generation wins
+        assertThat(storage.get(key(2)), is(2));
+        assertThat(walDir.list().length, is(1)); // the retained one is deleted with it
+
+        for (int i = 3; i < 5; i++) {
+            CallbackFuture<Void> later = new CallbackFuture<Void>();
+            log.add(key(i), i, later);
+            log.roll();
+            later.get(1L, TimeUnit.SECONDS);
+            log.checkpoint(true);
+            assertThat(walDir.list().length, is(1));
+        }
+        log.close();
+    }
+
+    @Test
+    public void keepSegmentIfNothingLogged() throws Exception {
+        dir = testDir("keepSegmentIfNothingLogged");
+        File walDir = new File(dir, "wal");
+
+        WriteAheadLog<Integer> log = new WriteAheadLog<Integer>(walDir, valueCodec);
+        log.replay(storage());
+
+        log.roll(); // idle flushing
+        assertThat(walDir.list().length, is(1));
+
+        CallbackFuture<Void> added = new CallbackFuture<Void>();
+        log.add(key(1), 1, added);
+        log.roll();
+        added.get(1L, TimeUnit.SECONDS);
+        assertThat(walDir.list().length, is(2));
+
+        log.checkpoint(true); // the idle generation
+        assertThat(walDir.list().length, is(2));
+        log.checkpoint(true);
+        assertThat(walDir.list().length, is(1));
+        log.close();
+    }
+
+    @Test
+    public void rejectTooLongRecord() throws Exception {
+        dir = testDir("rejectTooLongRecord");
+        File walDir = new File(dir, "wal");
+
+        BytesCodec bytesCodec = new BytesCodec();
+        Snapshot<byte[]> snapshot = new Snapshot<byte[]>(dir, indexCodec, new EntryCodec<byte[]>(new Md5KeyCodec(), bytesCodec));
+        WriteAheadLog<byte[]> log = new WriteAheadLog<byte[]>(walDir, bytesCodec);
+        log.replay(new Storage<byte[]>(snapshot, indexCodec, mock(DefragPolicy.class), new ValueCache<byte[]>(bytesCodec)));
+
+        try {
+            log.addRecord(key(1), new byte[FileAppender.MAX_APPEND_BYTES]);
+            fail("Record longer than the batch of appender should be rejected.");
+        } catch (IllegalArgumentException e) { }
+
+        CallbackFuture<Void> added = new CallbackFuture<Void>();
+        log.add(key(1), new byte[FileAppender.MAX_APPEND_BYTES / 2], added);
+        added.get(1L, TimeUnit.SECONDS);
+        log.close();
+    }
+
+    @Test
+    public void ignoreTornTail() throws Exception {
+        dir = testDir("ignoreTornTail");
+        File walDir = new File(dir, "wal");
+
+        WriteAheadLog<Integer> log = new WriteAheadLog<Integer>(walDir, valueCodec);
+        log.replay(storage());
+        CallbackFuture<Void> added = new CallbackFuture<Void>();
+        log.add(key(1), 1, added);
+        added.get(1L, TimeUnit.SECONDS);
+        log.close();
+
+        File segment = walDir.listFiles()[0];
+        byte[] bytes = Files.toByteArray(segment);
+        FileOutputStream stream = new FileOutputStream(segment, true);
+        stream.write(bytes, 0, bytes.length - 1); // a torn copy of the record
+        stream.close();
+
+        Storage<Integer> storage = storage();
+        new WriteAheadLog<Integer>(walDir, valueCodec).replay(storage);
+        assertThat(storage.get(key(1)), is(1));
+    }
+
+    private Storage<Integer> storage() {
+        Snapshot<Integer> snapshot = new Snapshot<Integer>(dir, indexCodec, entryCodec);
+        return new Storage<Integer>(snapshot, indexCodec, mock(DefragPolicy.class), new ValueCache<Integer>(valueCodec));
+    }
+}
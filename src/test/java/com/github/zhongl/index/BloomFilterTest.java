@@ -0,0 +1,107 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.index;
+
+import com.github.zhongl.util.FileTestContext;
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class BloomFilterTest extends FileTestContext {
+
+    @Test
+    public void noFalseNegative() throws Exception {
+        BloomFilter filter = BloomFilter.create(10000, 0.01);
+        for (int i = 0; i < 10000; i++) filter.put(new TestKey(i));
+        for (int i = 0; i < 10000; i++) assertThat(filter.mightContain(new TestKey(i)), is(true));
+
+        int falsePositives = 0;
+        for (int i = 10000; i < 20000; i++) if (filter.mightContain(new TestKey(i))) falsePositives++;
+        assertThat(falsePositives, is(lessThan(200)));
+    }
+
+    @Test
+    public void writeAndRead() throws Exception {
+        dir = testDir("writeAndRead");
+
+        BloomFilter filter = BloomFilter.create(100, 0.01);
+        for (int i = 0; i < 100; i++) filter.put(new TestKey(i * 7));
+
+        File file = BloomFilter.fileOf(new File(dir, "123.i"));
+        assertThat(file.getName(), is("123.b"));
+
+        filter.writeTo(file);
+        BloomFilter read = BloomFilter.readFrom(file);
+
+        for (int i = 0; i < 1000; i++)
+            assertThat(read.mightContain(new TestKey(i)), is(filter.mightContain(new TestKey(i))));
+    }
+
+    @Test
+    public void tellApartKeysWithEqualHashCodes() throws Exception {
+        BloomFilter filter = BloomFilter.create(10000, 0.01);
+        for (int i = 0; i < 10000; i++) filter.put(new WideKey(i));
+
+        int falsePositives = 0;
+        for (int i = 10000; i < 20000; i++) if (filter.mightContain(new WideKey(i))) falsePositives++;
+        assertThat(falsePositives, is(lessThan(200)));
+    }
+
+    @Test
+    public void ignoreOlderFormat() throws Exception {
+        dir = testDir("ignoreOlderFormat");
+
+        File file = new File(dir, "123.b");
+        Files.write(new byte[] {0, 0, 0, 7, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0}, file); // [hashes][length][bits]
+        assertThat(BloomFilter.readFrom(file), is(nullValue()));
+    }
+
+    @Test
+    public void emptyFilter() throws Exception {
+        BloomFilter filter = BloomFilter.create(0, 0.01);
+        assertThat(filter.mightContain(new TestKey(1)), is(false));
+    }
+
+    /** All hash codes are equal, but wide hashes are not. */
+    private static class WideKey extends TestKey implements WideHashable {
+        WideKey(int i) { super(i); }
+
+        @Override
+        public int hashCode() { return 0; }
+
+        @Override
+        public long highHash() { return mix(value); }
+
+        @Override
+        public long lowHash() { return mix(~value); }
+
+        private static long mix(long h) { // finalizer of murmur3
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb53a87e9ecabL;
+            return h ^ (h >>> 33);
+        }
+    }
+}
@@ -60,7 +60,7 @@ public class IndicesBenchmark extends FileTestContext {
 
     private static Md5Key key(int value) {return new Md5Key(Md5.md5(Ints.toByteArray(value)));}
 
-    private static class InnerIndexCodec implements IndexCodec {
+    private static class InnerIndexCodec implements IndexCodec, Interpolatable {
         Md5KeyCodec codec = new Md5KeyCodec();
 
         @Override
@@ -77,6 +77,16 @@ public class IndicesBenchmark extends FileTestContext {
         public int length() {
             return codec.length();
         }
+
+        @Override
+        public long ordinal(Key key) {
+            return codec.ordinal(key);
+        }
+
+        @Override
+        public long ordinal(ByteBuffer buffer, int position) {
+            return codec.ordinal(buffer, position);
+        }
     }
 
     private static class InnerIndex extends Index {
@@ -7,8 +7,7 @@ import org.junit.Test;
 
 import java.io.File;
 import java.nio.ByteBuffer;
-import java.util.Iterator;
-import java.util.TreeSet;
+import java.util.*;
 
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.nullValue;
@@ -43,6 +42,15 @@ public class IndicesTest extends FileTestContext {
         assertThat((TestIndex) indices.get(new TestKey(3)), is(new TestIndex(3, false)));
     }
 
+    @Test
+    public void getSortedKeys() throws Exception {
+        Index[] found = indices.get(Arrays.<Key>asList(new TestKey(0), new TestKey(1), new TestKey(3), new TestKey(4)));
+        assertThat(found[0], is(nullValue()));
+        assertThat((TestIndex) found[1], is(new TestIndex(1, false)));
+        assertThat((TestIndex) found[2], is(new TestIndex(3, false)));
+        assertThat(found[3], is(nullValue()));
+    }
+
     @Test
     public void merge() throws Exception {
         Difference difference = new Difference(new TreeSet<Index>());
@@ -63,4 +71,67 @@ public class IndicesTest extends FileTestContext {
         assertThat((TestIndex) iterator.next(), is(new TestIndex(4, false)));
         assertThat(iterator.hasNext(), is(false));
     }
+
+    @Test
+    public void interpolationSearch() throws Exception {
+        dir = testDir("interpolationSearch");
+
+        Difference difference = new Difference(new TreeSet<Index>());
+        for (int i = 0; i < 1000; i++) difference.add(new TestIndex(i * i, false)); // skewed
+
+        Indices interpolated = new Indices(new File(dir, "null.i"), new InterpolatableIndexCodec()).merge(difference);
+
+        for (int i = 0; i < 1000; i++) {
+            assertThat((TestIndex) interpolated.get(new TestKey(i * i)), is(new TestIndex(i * i, false)));
+            if (i > 1) assertThat(interpolated.get(new TestKey(i * i - 1)), is(nullValue()));
+        }
+        List<Key> keys = new ArrayList<Key>();
+        for (int i = -1; i < 1001; i++) keys.add(new TestKey(i));
+        Index[] found = interpolated.get(keys);
+        for (int i = -1; i < 1001; i++) {
+            int root = (int) Math.sqrt(i);
+            if (i >= 0 && root * root == i) assertThat((TestIndex) found[i + 1], is(new TestIndex(i, false)));
+            else assertThat(found[i + 1], is(nullValue()));
+        }
+
+        assertThat(interpolated.get(new TestKey(-1)), is(nullValue()));
+        assertThat(interpolated.get(new TestKey(1000 * 1000)), is(nullValue()));
+    }
+
+    @Test
+    public void segmented() throws Exception {
+        dir = testDir("segmented");
+
+        Difference difference = new Difference(new TreeSet<Index>());
+        for (int i = 0; i < 1000; i++) difference.add(new TestIndex(i * 2, false));
+        File file = new File(dir, new Indices(new File(dir, "null.i"), new TestIndexCodec()).merge(difference).fileName());
+
+        Indices segmented = new Indices(file, new InterpolatableIndexCodec(), null, 4 * 7 + 2); // 28 bytes a segment
+
+        assertThat(segmented.size(), is(1000L));
+        for (int i = 0; i < 1000; i++) {
+            assertThat((TestIndex) segmented.get(new TestKey(i * 2)), is(new TestIndex(i * 2, false)));
+            assertThat(segmented.get(new TestKey(i * 2 + 1)), is(nullValue()));
+        }
+
+        List<Key> keys = new ArrayList<Key>();
+        for (int i = 0; i < 2000; i++) keys.add(new TestKey(i));
+        Index[] found = segmented.get(keys);
+        for (int i = 0; i < 2000; i++) {
+            if (i % 2 == 0) assertThat((TestIndex) found[i], is(new TestIndex(i, false)));
+            else assertThat(found[i], is(nullValue()));
+        }
+
+        Iterator<Index> iterator = segmented.iterator();
+        for (int i = 0; i < 1000; i++) assertThat((TestIndex) iterator.next(), is(new TestIndex(i * 2, false)));
+        assertThat(iterator.hasNext(), is(false));
+    }
+
+    private static class InterpolatableIndexCodec extends TestIndexCodec implements Interpolatable {
+        @Override
+        public long ordinal(Key key) { return ((TestKey) key).value; }
+
+        @Override
+        public long ordinal(ByteBuffer buffer, int position) { return buffer.getInt(position); }
+    }
 }
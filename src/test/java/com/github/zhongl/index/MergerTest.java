@@ -15,14 +15,20 @@
 
 package com.github.zhongl.index;
 
+import com.github.zhongl.io.Segments;
 import com.github.zhongl.util.FileTestContext;
 import com.google.common.collect.Iterators;
+import com.google.common.io.Files;
 import org.junit.Test;
 
+import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
+import java.util.TreeSet;
 
 import static com.google.common.collect.Iterators.peekingIterator;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
 
 /** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
@@ -62,4 +68,103 @@ public class MergerTest extends FileTestContext {
         assertThat(iterator.hasNext(), is(false));
     }
 
+    @Test
+    public void streamingMerge() throws Exception {
+        dir = testDir("streamingMerge");
+
+        File baseFile = new File(dir, "base.i");
+        ByteBuffer base = ByteBuffer.allocate(4 * 6);
+        for (int i : new int[] {1, 3, 5, 7, 9, 11}) base.putInt(i);
+        Files.write(base.array(), baseFile);
+        base.flip();
+
+        BytesComparableIndexCodec codec = new BytesComparableIndexCodec();
+        Merger merger = new Merger(dir, codec);
+
+        IndicesFile indicesFile = merger.merge(baseFile, base, Iterators.<Index>forArray(
+                new TestIndex(0, false),
+                new TestIndex(3, true),
+                new TestIndex(4, false),
+                new TestIndex(9, false),
+                new TestIndex(12, false),
+                new TestIndex(13, true)
+        ));
+
+        Indices indices = new Indices(indicesFile.toFile(), codec);
+
+        Iterator<Index> iterator = indices.iterator();
+        for (int i : new int[] {0, 1, 4, 5, 7, 9, 11, 12}) assertThat(iterator.next(), is((Index) new TestIndex(i, false)));
+        assertThat(iterator.hasNext(), is(false));
+    }
+
+    @Test
+    public void streamingMergeSegmented() throws Exception {
+        dir = testDir("streamingMergeSegmented");
+
+        File baseFile = new File(dir, "base.i");
+        ByteBuffer base = ByteBuffer.allocate(4 * 6);
+        for (int i : new int[] {1, 3, 5, 7, 9, 11}) base.putInt(i);
+        Files.write(base.array(), baseFile);
+
+        base.position(0).limit(12);
+        ByteBuffer first = base.slice();
+        base.position(12).limit(24);
+        ByteBuffer second = base.slice();
+
+        BytesComparableIndexCodec codec = new BytesComparableIndexCodec();
+        Merger merger = new Merger(dir, codec);
+
+        IndicesFile indicesFile = merger.merge(baseFile, new Segments(new ByteBuffer[] {first, second}, 12),
+                Iterators.<Index>forArray(
+                        new TestIndex(4, false),
+                        new TestIndex(7, true),
+                        new TestIndex(10, false)
+                ), new IndicesFile(dir, codec), false);
+
+        Iterator<Index> iterator = new Indices(indicesFile.toFile(), codec).iterator();
+        for (int i : new int[] {1, 3, 4, 5, 9, 10, 11}) assertThat(iterator.next(), is((Index) new TestIndex(i, false)));
+        assertThat(iterator.hasNext(), is(false));
+    }
+
+    @Test
+    public void bloomFilter() throws Exception {
+        dir = testDir("bloomFilter");
+
+        File baseFile = new File(dir, "base.i");
+        ByteBuffer base = ByteBuffer.allocate(4 * 1000);
+        for (int i = 0; i < 1000; i++) base.putInt(i * 2);
+        Files.write(base.array(), baseFile);
+        base.flip();
+
+        BytesComparableIndexCodec codec = new BytesComparableIndexCodec();
+        Merger merger = new Merger(dir, codec, 0.01);
+
+        Difference difference = new Difference(new TreeSet<Index>());
+        for (int i = 0; i < 10; i++) difference.add(new TestIndex(i * 200 + 1, false));
+
+        IndicesFile indicesFile = new IndicesFile(codec, new File(dir, "merged.i"), null,
+                merger.newBloomFilter(1000 + difference.size()));
+        File file = merger.merge(baseFile, base, difference.iterator(), indicesFile, false).toFile();
+
+        BloomFilter filter = indicesFile.bloomFilter();
+        for (int i = 0; i < 1000; i++) assertThat(filter.mightContain(new TestKey(i * 2)), is(true)); // transferred
+        for (int i = 0; i < 10; i++) assertThat(filter.mightContain(new TestKey(i * 200 + 1)), is(true)); // appended
+
+        Indices indices = new Indices(file, codec, BloomFilter.fileOf(file));
+        assertThat(indices.bloomFilterFileName(), is(BloomFilter.fileOf(file).getName()));
+        assertThat(indices.get(new TestKey(3)), is(nullValue()));
+        assertThat((TestIndex) indices.get(new TestKey(2)), is(new TestIndex(2, false)));
+        assertThat((TestIndex) indices.get(new TestKey(201)), is(new TestIndex(201, false)));
+
+        assertThat(new Merger(dir, codec, 0.0).newBloomFilter(1000), is(nullValue()));
+    }
+
+    private static class BytesComparableIndexCodec extends TestIndexCodec implements BytesComparable {
+        @Override
+        public int compare(Key key, ByteBuffer buffer, int position) {
+            int value = ((TestKey) key).value;
+            int that = buffer.getInt(position);
+            return value > that ? 1 : (value == that ? 0 : -1);
+        }
+    }
 }
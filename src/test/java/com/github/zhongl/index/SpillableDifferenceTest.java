@@ -0,0 +1,91 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.index;
+
+import com.github.zhongl.util.FileTestContext;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class SpillableDifferenceTest extends FileTestContext {
+
+    @Test
+    public void laterAddedWinsAcrossRuns() throws Exception {
+        dir = testDir("laterAddedWinsAcrossRuns");
+
+        SpillableDifference difference = new SpillableDifference(dir, new TestRemovableIndexCodec(), 2, 4);
+        difference.add(new TestIndex(3, false));
+        difference.add(new TestIndex(1, false));
+        difference.add(new TestIndex(2, false));
+        difference.add(new TestIndex(3, true));
+        difference.add(new TestIndex(1, true));
+        difference.add(new TestIndex(0, false));
+        difference.add(new TestIndex(5, false));
+
+        assertThat(difference.spilledRuns(), is(3));
+
+        Iterator<Index> iterator = difference.iterator();
+        assertThat(iterator.next(), is((Index) new TestIndex(0, false)));
+        assertThat(iterator.next().isRemoved(), is(true));
+        assertThat(iterator.next(), is((Index) new TestIndex(2, false)));
+        Index index = iterator.next();
+        assertThat(index, is((Index) new TestIndex(3, false)));
+        assertThat(index.isRemoved(), is(true));
+        assertThat(iterator.next(), is((Index) new TestIndex(5, false)));
+        assertThat(iterator.hasNext(), is(false));
+
+        difference.close();
+        assertThat(dir.list().length, is(0));
+    }
+
+    @Test
+    public void cascadeRunsBeyondFanIn() throws Exception {
+        dir = testDir("cascadeRunsBeyondFanIn");
+
+        SpillableDifference difference = new SpillableDifference(dir, new TestRemovableIndexCodec(), 3, 3);
+        Map<Integer, Boolean> expected = new TreeMap<Integer, Boolean>();
+        Random random = new Random(7L);
+        for (int i = 0; i < 500; i++) {
+            int key = random.nextInt(100);
+            boolean removed = random.nextBoolean();
+            difference.add(new TestIndex(key, removed));
+            expected.put(key, removed);
+            assertThat(difference.spilledRuns(), is(lessThanOrEqualTo(12))); // at most 2 of each level, 6 levels
+        }
+
+        Iterator<Index> iterator = difference.iterator();
+        assertThat(difference.spilledRuns(), is(lessThanOrEqualTo(3)));
+        for (Map.Entry<Integer, Boolean> entry : expected.entrySet()) {
+            Index index = iterator.next();
+            assertThat(index, is((Index) new TestIndex(entry.getKey(), false)));
+            assertThat(index.isRemoved(), is(entry.getValue()));
+        }
+        assertThat(iterator.hasNext(), is(false));
+
+        difference.iterator().next(); // left unfinished
+        difference.close();
+        assertThat(dir.list().length, is(0));
+    }
+}
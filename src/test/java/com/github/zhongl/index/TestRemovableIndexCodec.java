@@ -0,0 +1,20 @@
+package com.github.zhongl.index;
+
+import java.nio.ByteBuffer;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+class TestRemovableIndexCodec implements IndexCodec {
+    @Override
+    public ByteBuffer encode(Index value) {
+        return (ByteBuffer) ByteBuffer.allocate(length())
+                                      .putInt(((TestKey) value.key()).value)
+                                      .put((byte) (value.isRemoved() ? 1 : 0))
+                                      .flip();
+    }
+
+    @Override
+    public Index decode(ByteBuffer byteBuffer) { return new TestIndex(byteBuffer.getInt(), byteBuffer.get() == 1); }
+
+    @Override
+    public int length() { return 5; }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.index;
+
+import com.github.zhongl.util.FileTestContext;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class TieredIndicesTest extends FileTestContext {
+
+    @Test
+    public void removedShadowsOlderRun() throws Exception {
+        dir = testDir("removedShadowsOlderRun");
+        TieredIndices indices = tieredIndices(2);
+
+        indices.merge(difference(index(1), index(2), index(3), index(4), index(5)));
+        indices.merge(difference(removed(2), removed(100)));
+
+        assertThat(indices.runCount(), is(3));
+        assertThat((TestIndex) indices.get(new TestKey(1)), is(index(1)));
+        assertThat(indices.get(new TestKey(2)), is(nullValue()));
+        assertThat(indices.get(new TestKey(100)), is(nullValue()));
+        assertThat((TestIndex) indices.get(new TestKey(101)), is(index(101)));
+        assertThat(indices.aliveSize(), is(103));
+    }
+
+    @Test
+    public void compactIntoOldestRun() throws Exception {
+        dir = testDir("compactIntoOldestRun");
+        ExecutorService compactor = Executors.newSingleThreadExecutor();
+        TieredIndices indices = tieredIndices(2, compactor);
+
+        Difference difference = new Difference(new TreeSet<Index>());
+        for (int i = 0; i < 50; i++) difference.add(index(i));
+        difference.add(removed(100));
+        indices.merge(difference);
+
+        compactor.submit(new Runnable() {
+            @Override
+            public void run() { }
+        }).get(); // compaction submitted by merge has finished
+        assertThat(indices.runCount(), is(1));
+
+        assertThat(indices.get(new TestKey(100)), is(nullValue()));
+        assertThat((TestIndex) indices.get(new TestKey(0)), is(index(0)));
+        assertThat(indices.aliveSize(), is(149)); // removed entry has been dropped.
+
+        Set<String> inUse = new HashSet<String>();
+        List<Indices> runs = indices.runs(inUse);
+        assertThat(runs.size(), is(1));
+        assertThat(new File(dir, runs.get(0).fileName()).length(), is(149L * 5));
+    }
+
+    @Test
+    public void closeRunsReplacedOrClosed() throws Exception {
+        dir = testDir("closeRunsReplacedOrClosed");
+        Indices empty = new Indices(emptyFile("null.i"), new TestRemovableIndexCodec());
+        Indices replaced = empty.merge(difference(index(1)).iterator(), new File(dir, "0.i"), false);
+        TieredIndices indices = new TieredIndices(dir, Collections.singletonList(replaced), new TestRemovableIndexCodec(), 0);
+
+        indices.replace(difference(index(2)));
+        assertThat(replaced.size(), is(0L)); // unmapped
+
+        Indices closed = new Indices(new File(dir, indices.runs(new HashSet<String>()).get(0).fileName()), new TestRemovableIndexCodec());
+        indices = new TieredIndices(dir, Collections.singletonList(closed), new TestRemovableIndexCodec(), 0);
+        indices.close();
+        assertThat(closed.size(), is(0L));
+    }
+
+    @Test
+    public void noCompactionAfterClosed() throws Exception {
+        dir = testDir("noCompactionAfterClosed");
+        ExecutorService compactor = Executors.newSingleThreadExecutor();
+        TieredIndices indices = tieredIndices(2, compactor);
+        indices.close();
+        assertThat(compactor.isTerminated(), is(true));
+
+        Difference difference = new Difference(new TreeSet<Index>());
+        for (int i = 0; i < 50; i++) difference.add(index(i));
+        indices.merge(difference); // would be rejected if it submitted a compaction
+
+        assertThat(indices.runCount(), is(2));
+        assertThat((TestIndex) indices.get(new TestKey(0)), is(index(0)));
+    }
+
+    @Test
+    public void replaceAllRuns() throws Exception {
+        dir = testDir("replaceAllRuns");
+        TieredIndices indices = tieredIndices(10);
+
+        indices.merge(difference(index(1), index(2)));
+        indices.merge(difference(index(3)));
+        indices.replace(difference(index(2), removed(3)));
+
+        assertThat(indices.runCount(), is(1));
+        assertThat(indices.get(new TestKey(1)), is(nullValue()));
+        assertThat((TestIndex) indices.get(new TestKey(2)), is(index(2)));
+        assertThat(indices.get(new TestKey(3)), is(nullValue()));
+        assertThat(indices.get(new TestKey(100)), is(nullValue()));
+    }
+
+    @Test
+    public void collapseRunsIfDisabled() throws Exception {
+        dir = testDir("collapseRunsIfDisabled");
+        File older = new File(dir, "older.i");
+        File newer = new File(dir, "newer.i");
+        File newest = new File(dir, "newest.i");
+        Indices oldest = new Indices(emptyFile("null.i"), new TestRemovableIndexCodec());
+        oldest.merge(difference(index(1), index(2)).iterator(), older, false);
+        oldest.merge(difference(removed(1)).iterator(), newer, true);
+        oldest.merge(difference(index(4)).iterator(), newest, true);
+
+        List<Indices> runs = Arrays.asList(
+                new Indices(newest, new TestRemovableIndexCodec()),
+                new Indices(newer, new TestRemovableIndexCodec()),
+                new Indices(older, new TestRemovableIndexCodec())
+        );
+        TieredIndices indices = new TieredIndices(dir, runs, new TestRemovableIndexCodec(), 0);
+
+        indices.merge(difference(index(3)));
+
+        for (Indices run : runs) assertThat(run.size(), is(0L)); // collapsed runs are unmapped
+        assertThat(indices.runCount(), is(1));
+        assertThat(indices.get(new TestKey(1)), is(nullValue()));
+        assertThat((TestIndex) indices.get(new TestKey(2)), is(index(2)));
+        assertThat((TestIndex) indices.get(new TestKey(3)), is(index(3)));
+        assertThat((TestIndex) indices.get(new TestKey(4)), is(index(4)));
+        assertThat(indices.aliveSize(), is(3)); // removed entry has been dropped.
+    }
+
+    /** The oldest run has 100 entries from 100, so that small flushes would not be compacted. */
+    private TieredIndices tieredIndices(int fanout) throws Exception {
+        return tieredIndices(fanout, Executors.newSingleThreadExecutor());
+    }
+
+    private TieredIndices tieredIndices(int fanout, ExecutorService compactor) throws Exception {
+        Difference difference = new Difference(new TreeSet<Index>());
+        for (int i = 100; i < 200; i++) difference.add(index(i));
+        Indices empty = new Indices(emptyFile("null.i"), new TestRemovableIndexCodec());
+        List<Indices> runs = Collections.singletonList(empty.merge(difference.iterator(), new File(dir, "0.i"), false));
+        return new TieredIndices(dir, runs, new TestRemovableIndexCodec(), fanout, compactor);
+    }
+
+    private File emptyFile(String name) throws Exception {
+        File file = new File(dir, name);
+        file.createNewFile();
+        return file;
+    }
+
+    private static Difference difference(TestIndex... indices) {
+        Difference difference = new Difference(new TreeSet<Index>());
+        for (TestIndex index : indices) difference.add(index);
+        return difference;
+    }
+
+    private static TestIndex index(int i) { return new TestIndex(i, false); }
+
+    private static TestIndex removed(int i) { return new TestIndex(i, true); }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.io;
+
+import com.github.zhongl.util.FileTestContext;
+import com.google.common.base.Function;
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.*;
+
+import static com.github.zhongl.io.TestFunctions.GET_INT;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class DirectBufferTest extends FileTestContext {
+
+    @Test
+    public void reloadDuringReading() throws Exception {
+        dir = testDir("reloadDuringReading");
+
+        File a = new File(dir, "a");
+        Files.write(new byte[] {0, 0, 0, 1}, a);
+        File b = new File(dir, "b");
+        Files.write(new byte[] {0, 0, 0, 2}, b);
+
+        final DirectBuffer buffer = new DirectBuffer().loadFrom(a);
+
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch reloaded = new CountDownLatch(1);
+        Future<Integer> future = Executors.newSingleThreadExecutor().submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return buffer.read(new Function<ByteBuffer, Integer>() {
+                    @Override
+                    public Integer apply(ByteBuffer byteBuffer) {
+                        reading.countDown();
+                        try {
+                            reloaded.await();
+                        } catch (InterruptedException e) {
+                            throw new IllegalStateException(e);
+                        }
+                        return byteBuffer.getInt(0); // old mapping is still available
+                    }
+                });
+            }
+        });
+
+        reading.await();
+        buffer.loadFrom(b);
+        assertThat(buffer.backendFile(), is(b));
+        assertThat(buffer.read(GET_INT), is(2));
+        reloaded.countDown();
+
+        assertThat(future.get(), is(1));
+
+        buffer.unload();
+        assertThat(buffer.read(new Function<ByteBuffer, Integer>() {
+            @Override
+            public Integer apply(ByteBuffer byteBuffer) { return byteBuffer.capacity(); }
+        }), is(0));
+    }
+}
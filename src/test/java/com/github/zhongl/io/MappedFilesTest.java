@@ -0,0 +1,94 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.io;
+
+import com.github.zhongl.util.FileTestContext;
+import com.google.common.base.Function;
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import static com.github.zhongl.io.TestFunctions.GET_INT;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class MappedFilesTest extends FileTestContext {
+
+    @Test
+    public void readAndClose() throws Exception {
+        dir = testDir("readAndClose");
+
+        File a = new File(dir, "a");
+        Files.write(new byte[] {0, 0, 0, 1, 0, 0, 0, 2}, a);
+
+        MappedFiles files = new MappedFiles();
+
+        assertThat(files.read(a, 4L, 4, GET_INT), is(2));
+        assertThat(files.read(a, 0L, 4, GET_INT), is(1));
+
+        files.close(a);
+        assertThat(a.delete(), is(true));
+    }
+
+    @Test
+    public void keepMappingForReadInFlight() throws Exception {
+        dir = testDir("keepMappingForReadInFlight");
+
+        final File a = new File(dir, "a");
+        Files.write(new byte[] {0, 0, 0, 1, 0, 0, 0, 2}, a);
+
+        final MappedFiles files = new MappedFiles();
+        assertThat(files.read(a, 0L, 4, GET_INT), is(1)); // mapped
+
+        assertThat(files.read(a, 4L, 4, new Function<ByteBuffer, Integer>() {
+            private boolean closed;
+
+            @Override
+            public Integer apply(ByteBuffer byteBuffer) {
+                if (!closed) { // unmapped after this read finishes
+                    closed = true;
+                    files.close(a);
+                }
+                return byteBuffer.getInt();
+            }
+        }), is(2));
+
+        files.closeAll();
+    }
+
+    @Test
+    public void decodeFromSlice() throws Exception {
+        dir = testDir("decodeFromSlice");
+
+        File a = new File(dir, "a");
+        Files.write(new byte[] {0, 0, 0, 1, 0, 0, 0, 2}, a);
+
+        MappedFiles files = new MappedFiles();
+
+        assertThat(files.read(a, 4L, 4, new Function<ByteBuffer, Integer>() {
+            @Override
+            public Integer apply(ByteBuffer byteBuffer) {
+                return byteBuffer.position() * 100 + byteBuffer.remaining();
+            }
+        }), is(4));
+
+        files.closeAll();
+    }
+}
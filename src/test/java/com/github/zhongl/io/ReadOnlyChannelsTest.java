@@ -0,0 +1,83 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.io;
+
+import com.github.zhongl.util.FileTestContext;
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.channels.ClosedByInterruptException;
+
+import static com.github.zhongl.io.TestFunctions.GET_INT;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class ReadOnlyChannelsTest extends FileTestContext {
+
+    @Test
+    public void readAndEvict() throws Exception {
+        dir = testDir("readAndEvict");
+
+        File a = new File(dir, "a");
+        File b = new File(dir, "b");
+        Files.write(new byte[] {0, 0, 0, 1, 0, 0, 0, 2}, a);
+        Files.write(new byte[] {0, 0, 0, 3, 0, 0, 0, 4}, b);
+
+        ReadOnlyChannels channels = new ReadOnlyChannels(1);
+
+        assertThat(channels.read(a, 4L, 4, GET_INT), is(2));
+        assertThat(channels.read(a, 0L, 4, GET_INT), is(1));
+        assertThat(channels.size(), is(1));
+
+        assertThat(channels.read(b, 4L, 4, GET_INT), is(4));
+        assertThat(channels.size(), is(1));
+
+        assertThat(channels.read(a, 0L, 4, GET_INT), is(1));
+
+        channels.close(a);
+        assertThat(channels.size(), is(0));
+
+        assertThat(channels.read(b, 0L, 4, GET_INT), is(3));
+        channels.closeAll();
+        assertThat(channels.size(), is(0));
+    }
+
+    @Test
+    public void readAfterInterrupted() throws Exception {
+        dir = testDir("readAfterInterrupted");
+
+        File a = new File(dir, "a");
+        Files.write(new byte[] {0, 0, 0, 1}, a);
+
+        ReadOnlyChannels channels = new ReadOnlyChannels();
+        assertThat(channels.read(a, 0L, 4, GET_INT), is(1));
+
+        Thread.currentThread().interrupt();
+        try {
+            channels.read(a, 0L, 4, GET_INT);
+            fail("Interrupted read should fail.");
+        } catch (ClosedByInterruptException expected) {
+            assertThat(Thread.interrupted(), is(true));
+        }
+
+        assertThat(channels.read(a, 0L, 4, GET_INT), is(1)); // the shared channel closed by interruption was reopened
+        channels.closeAll();
+    }
+}
@@ -0,0 +1,15 @@
+package com.github.zhongl.io;
+
+import com.google.common.base.Function;
+
+import java.nio.ByteBuffer;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+class TestFunctions {
+    static final Function<ByteBuffer, Integer> GET_INT = new Function<ByteBuffer, Integer>() {
+        @Override
+        public Integer apply(ByteBuffer byteBuffer) { return byteBuffer.getInt(); }
+    };
+
+    private TestFunctions() {}
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.io;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class ThrottleTest {
+
+    @Test
+    public void limitBytesPerSecond() throws Exception {
+        Throttle throttle = new Throttle(100 * 1024);
+
+        long begin = System.nanoTime();
+        for (int i = 0; i < 4; i++) throttle.acquire(10 * 1024);
+        long elapse = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+
+        assertThat(elapse, greaterThanOrEqualTo(350L)); // 40K at 100K/s
+    }
+
+    @Test
+    public void unlimited() throws Exception {
+        Throttle throttle = new Throttle(100 * 1024);
+        throttle.setBytesPerSecond(0L);
+        assertThat(throttle.getBytesPerSecond(), is(0L));
+
+        long begin = System.nanoTime();
+        throttle.acquire(Long.MAX_VALUE);
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin), lessThan(100L));
+    }
+}
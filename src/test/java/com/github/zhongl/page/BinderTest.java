@@ -28,7 +28,9 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import static com.github.zhongl.util.IteratorAsserts.assertIteratorOf;
 import static org.hamcrest.Matchers.is;
@@ -37,6 +39,11 @@ import static org.junit.Assert.assertThat;
 /** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
 public class BinderTest extends FileTestContext {
 
+    private static final Function<Element<Integer>, Void> IGNORE = new Function<Element<Integer>, Void>() {
+        @Override
+        public Void apply(Element<Integer> element) { return null; }
+    };
+
     private Binder<Integer> binder;
 
     @Before
@@ -98,6 +105,9 @@ public class BinderTest extends FileTestContext {
                 element(6, range(20, 24))
         );
 
+        assertThat(binder.get(Arrays.asList(range(0, 4), range(4, 8), range(12, 16), range(20, 24))),
+                   is(Arrays.asList(1, 2, 4, 6))); // coalesced and across pages
+
         collector.clear();
 
         binder = binder.defrag(
@@ -127,6 +137,142 @@ public class BinderTest extends FileTestContext {
     }
 
 
+    @Test
+    public void parallelDefrag() throws Exception {
+        for (int i = 0; i < 5; i++) binder = binder.append(Arrays.asList(i * 3, i * 3 + 1, i * 3 + 2), IGNORE);
+
+        final List<Element<Integer>> collector = new ArrayList<Element<Integer>>();
+        binder = binder.defrag(
+                new Predicate<Element<Integer>>() {
+                    @Override
+                    public boolean apply(Element<Integer> element) { return element.value() % 2 == 0; }
+                },
+                new Function<Element<Integer>, Void>() {
+                    @Override
+                    public Void apply(Element<Integer> element) {
+                        collector.add(element);
+                        return null;
+                    }
+                },
+                3
+        );
+
+        List<Element<Integer>> expected = new ArrayList<Element<Integer>>();
+        for (int i = 0; i < 8; i++) expected.add(element(i * 2, range(i * 4, i * 4 + 4)));
+
+        assertThat(collector, is(expected));
+        assertIteratorOf(binder, expected.toArray(new Element[expected.size()]));
+    }
+
+    @Test
+    public void parallelDefragChunksOfOnePage() throws Exception {
+        List<Integer> values = new ArrayList<Integer>();
+        for (int i = 0; i < 20; i++) values.add(i);
+        binder = binder.append(values, IGNORE);
+
+        final Set<Thread> scanners = Collections.synchronizedSet(new HashSet<Thread>());
+        final List<Element<Integer>> collector = new ArrayList<Element<Integer>>();
+        binder = binder.defrag(
+                new Predicate<Element<Integer>>() {
+                    @Override
+                    public boolean apply(Element<Integer> element) {
+                        scanners.add(Thread.currentThread());
+                        return element.value() % 3 == 0;
+                    }
+                },
+                new Function<Element<Integer>, Void>() {
+                    @Override
+                    public Void apply(Element<Integer> element) {
+                        collector.add(element);
+                        return null;
+                    }
+                },
+                3,
+                4
+        );
+
+        List<Element<Integer>> expected = new ArrayList<Element<Integer>>();
+        for (int i = 0; i < 7; i++) expected.add(element(i * 3, range(i * 4, i * 4 + 4)));
+
+        assertThat(collector, is(expected));
+        assertIteratorOf(binder, expected.toArray(new Element[expected.size()]));
+        assertThat(scanners.contains(Thread.currentThread()), is(false));
+    }
+
+    @Test
+    public void reuseDefragThreadsUntilClosed() throws Exception {
+        List<Integer> values = new ArrayList<Integer>();
+        for (int i = 0; i < 20; i++) values.add(i);
+        binder = binder.append(values, IGNORE);
+
+        final Set<Thread> scanners = Collections.synchronizedSet(new HashSet<Thread>());
+        Predicate<Element<Integer>> all = new Predicate<Element<Integer>>() {
+            @Override
+            public boolean apply(Element<Integer> element) {
+                scanners.add(Thread.currentThread());
+                return true;
+            }
+        };
+
+        binder = binder.defrag(all, IGNORE, 2, 4);
+        Set<Thread> first = new HashSet<Thread>(scanners);
+        binder = binder.defrag(all, IGNORE, 2, 4);
+        assertThat(scanners, is(first));
+
+        binder.close();
+        for (Thread thread : first) {
+            thread.join(1000L);
+            assertThat(thread.isAlive(), is(false));
+        }
+    }
+
+    @Test
+    public void relocateDirtyPages() throws Exception {
+        for (int i = 0; i < 3; i++) binder = binder.append(Arrays.asList(i * 3, i * 3 + 1, i * 3 + 2), IGNORE);
+
+        binder.markDead(range(0, 4));  // 0
+        binder.markDead(range(8, 12)); // 2
+        binder.markDead(range(16, 20)); // 4
+        assertThat(binder.deadBytes(), is(12L));
+
+        final List<Element<Integer>> collector = new ArrayList<Element<Integer>>();
+        List<Page<Integer>> relocated = binder.relocate(
+                0.5,
+                new Predicate<Element<Integer>>() {
+                    @Override
+                    public boolean apply(Element<Integer> element) {
+                        return element.value() != 0 && element.value() != 2 && element.value() != 4;
+                    }
+                },
+                new Function<Element<Integer>, Void>() {
+                    @Override
+                    public Void apply(Element<Integer> element) {
+                        collector.add(element);
+                        return null;
+                    }
+                });
+
+        assertThat(relocated.size(), is(1));
+        assertThat(relocated.get(0).number().value(), is(0L));
+        assertThat(collector, is(Arrays.asList(element(1, range(36, 40)))));
+        assertThat(binder.get(range(4, 8)), is(1)); // still readable before dropping
+
+        binder = binder.drop(relocated);
+
+        assertIteratorOf(binder,
+                element(3, range(12, 16)),
+                element(4, range(16, 20)),
+                element(5, range(20, 24)),
+                element(6, range(24, 28)),
+                element(7, range(28, 32)),
+                element(8, range(32, 36)),
+                element(1, range(36, 40))
+        );
+        assertThat(binder.get(range(36, 40)), is(1));
+        assertThat(binder.diskOccupiedBytes(), is(28L));
+        assertThat(binder.deadBytes(), is(4L));
+    }
+
     static <T> Element<T> element(T value, Range range) {
         return new Element(value, range);
     }
@@ -62,4 +62,14 @@ public class CallByCountOrElapseTest {
         Thread.sleep(elapseMilliseconds / 2);
         assertThat(callByCountOrElapse.tryCallByElapse(), is(false));
     }
+
+    @Test
+    public void runByCountOfDelta() throws Exception {
+        assertThat(callByCountOrElapse.tryCallByCount(0), is(false));
+        assertThat(callByCountOrElapse.tryCallByCount(2), is(false));
+        assertThat(callByCountOrElapse.tryCallByCount(5), is(true)); // run and reset, surplus is dropped
+        assertThat(callByCountOrElapse.tryCallByCount(count - 1), is(false));
+        assertThat(callByCountOrElapse.tryCallByCount(1), is(true));
+        assertThat(callByCountOrElapse.tryCallByCount(count), is(true)); // a batch as large as count
+    }
 }